@@ -2,15 +2,31 @@ package xyz.nickr.telepad;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import java.lang.ref.WeakReference;
 import java.text.Collator;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import pro.zackpollard.telegrambot.api.TelegramBot;
 import pro.zackpollard.telegrambot.api.event.Listener;
+import xyz.nickr.telepad.command.CommandDispatcher;
 import xyz.nickr.telepad.command.CommandManager;
+import xyz.nickr.telepad.command.ScriptExecutor;
+import xyz.nickr.telepad.menu.InlineMenuEditCoalescer;
+import xyz.nickr.telepad.metrics.InMemoryMetricsSink;
+import xyz.nickr.telepad.metrics.MetricsSink;
+import xyz.nickr.telepad.metrics.NoopMetricsSink;
+import xyz.nickr.telepad.outbound.OutboundScheduler;
 import xyz.nickr.telepad.permission.PermissionManager;
+import xyz.nickr.telepad.trace.Tracer;
+import xyz.nickr.telepad.util.AsyncExecutor;
+import xyz.nickr.telepad.util.FileUserCacheStorage;
 import xyz.nickr.telepad.util.UserCache;
+import xyz.nickr.telepad.util.UserCacheStorage;
 
 /**
  * The base class for Telepad, providing access to managers and caches.
@@ -22,15 +38,38 @@ public final class TelepadBot {
 
     public static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
 
+    // weak both ways, as each bot references its handle
+    private static final Map<TelegramBot, WeakReference<TelepadBot>> instances = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Gets the Telepad bot wrapping a {@link TelegramBot}.
+     *
+     * @param handle The telegram bot instance
+     *
+     * @return The Telepad bot, or null if there is none
+     */
+    public static TelepadBot from(TelegramBot handle) {
+        WeakReference<TelepadBot> bot = handle != null ? instances.get(handle) : null;
+        return bot != null ? bot.get() : null;
+    }
+
     private final TelegramBot handle;
     private final TelepadListener listener;
     private final CommandManager commandManager;
+    private final CommandDispatcher commandDispatcher;
     private final PermissionManager permissionManager;
     private final UserCache userCache;
+    private final Tracer tracer = new Tracer();
 
     private Locale locale = Locale.US;
     private Collator collator = Collator.getInstance(locale);
 
+    private volatile AsyncExecutor menuExecutor = AsyncExecutor.builder().name("telepad-menu").build();
+    private volatile OutboundScheduler outboundScheduler = new OutboundScheduler();
+    private volatile ScriptExecutor scriptExecutor = new ScriptExecutor();
+    private volatile MetricsSink metricsSink = new InMemoryMetricsSink();
+    private volatile InlineMenuEditCoalescer menuEditCoalescer = new InlineMenuEditCoalescer(0, TimeUnit.MILLISECONDS);
+
     /**
      * Creates a Telepad bot based on a Telegram Authentication Token
      * from @BotFather.
@@ -41,18 +80,47 @@ public final class TelepadBot {
         this(TelegramBot.login(token));
     }
 
+    /**
+     * Creates a Telepad bot based on a Telegram Authentication Token
+     * from @BotFather, keeping its user cache in the given storage.
+     *
+     * @param token The authentication token
+     * @param userCacheStorage The user cache storage
+     */
+    public TelepadBot(String token, UserCacheStorage userCacheStorage) {
+        this(TelegramBot.login(token), userCacheStorage);
+    }
+
     /**
      * Creates a Telepad bot based on a {@link TelegramBot}.
      *
+     * The user cache is stored in {@link UserCache#USER_CACHE_FILENAME}
+     * in the working directory.
+     *
      * @param handle The telegram bot instance.
      */
     public TelepadBot(TelegramBot handle) {
+        // a null handle is rejected below, so don't open the storage for it
+        this(handle, handle != null ? new FileUserCacheStorage() : null);
+    }
+
+    /**
+     * Creates a Telepad bot based on a {@link TelegramBot}, keeping its
+     * user cache in the given storage.
+     *
+     * @param handle The telegram bot instance.
+     * @param userCacheStorage The user cache storage
+     */
+    public TelepadBot(TelegramBot handle, UserCacheStorage userCacheStorage) {
         this.handle = Objects.requireNonNull(handle, "Telegram bot is null. Invalid auth token?");
-        this.userCache = new UserCache();
+        this.userCache = new UserCache(userCacheStorage);
         this.listener = new TelepadListener(this);
         this.commandManager = new CommandManager(this);
+        this.commandDispatcher = new CommandDispatcher(this);
         this.permissionManager = new PermissionManager(this);
+        this.scriptExecutor.setMetricsSink(metricsSink);
 
+        instances.put(handle, new WeakReference<>(this));
         this.handle.getEventsManager().register(this.listener);
     }
 
@@ -68,6 +136,93 @@ public final class TelepadBot {
         this.collator = Collator.getInstance(locale);
     }
 
+    /**
+     * Sets the scheduler that paces requests sent to Telegram.
+     *
+     * The previous scheduler is shut down once its submitted requests
+     * have been made.
+     *
+     * @param outboundScheduler The new scheduler
+     */
+    public void setOutboundScheduler(OutboundScheduler outboundScheduler) {
+        OutboundScheduler old = this.outboundScheduler;
+        this.outboundScheduler = Objects.requireNonNull(outboundScheduler, "outbound scheduler cannot be null");
+        old.shutdown();
+    }
+
+    /**
+     * Sets the executor used for asynchronous inline menu updates.
+     *
+     * The previous executor is shut down once its queued updates finish.
+     *
+     * @param menuExecutor The new executor
+     */
+    public void setMenuExecutor(AsyncExecutor menuExecutor) {
+        AsyncExecutor old = this.menuExecutor;
+        this.menuExecutor = Objects.requireNonNull(menuExecutor, "menu executor cannot be null");
+        old.shutdown();
+    }
+
+    /**
+     * Sets where metrics about commands and updates are recorded.
+     *
+     * Use {@link NoopMetricsSink#INSTANCE} to turn metrics off.
+     *
+     * @param metricsSink The new sink
+     */
+    public void setMetricsSink(MetricsSink metricsSink) {
+        this.metricsSink = Objects.requireNonNull(metricsSink, "metrics sink cannot be null");
+        scriptExecutor.setMetricsSink(metricsSink);
+    }
+
+    /**
+     * Sets the executor that runs scripted commands, and limits how long
+     * they run for and how many run at once.
+     *
+     * The previous executor is shut down once its running scripts finish.
+     *
+     * @param scriptExecutor The new executor
+     */
+    public void setScriptExecutor(ScriptExecutor scriptExecutor) {
+        ScriptExecutor old = this.scriptExecutor;
+        this.scriptExecutor = Objects.requireNonNull(scriptExecutor, "script executor cannot be null");
+        scriptExecutor.setMetricsSink(metricsSink);
+        old.shutdown();
+    }
+
+    /**
+     * Sets the debounce window for edits to inline menu messages.
+     *
+     * Edits requested within the window of each other are collapsed into
+     * one, so that only the latest menu is sent to Telegram.
+     *
+     * @param window The window, or 0 to send every edit immediately
+     * @param unit The unit of the window
+     */
+    public void setMenuEditDebounce(long window, TimeUnit unit) {
+        InlineMenuEditCoalescer old = this.menuEditCoalescer;
+        this.menuEditCoalescer = new InlineMenuEditCoalescer(window, unit);
+        old.shutdown();
+    }
+
+    /**
+     * Stops this bot's executors, closes its user cache storage, and
+     * forgets the bot, so that {@link #from(TelegramBot)} no longer finds it.
+     */
+    public void close() {
+        synchronized (instances) {
+            WeakReference<TelepadBot> bot = instances.get(handle);
+            if (bot != null && bot.get() == this)
+                instances.remove(handle);
+        }
+        commandManager.stopWatchingScripts();
+        menuEditCoalescer.shutdown();
+        menuExecutor.shutdown();
+        scriptExecutor.shutdown();
+        outboundScheduler.shutdown();
+        userCache.close();
+    }
+
     /**
      * Registers a listener.
      *
@@ -1,5 +1,6 @@
 package xyz.nickr.telepad;
 
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiFunction;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -17,11 +18,26 @@ import pro.zackpollard.telegrambot.api.event.chat.message.MessageCallbackQueryRe
 import pro.zackpollard.telegrambot.api.event.chat.message.MessageReceivedEvent;
 import pro.zackpollard.telegrambot.api.user.User;
 import xyz.nickr.telepad.menu.InlineMenuButtonResponse;
+import xyz.nickr.telepad.menu.InlineMenuCallback;
 import xyz.nickr.telepad.menu.InlineMenuMessage;
+import xyz.nickr.telepad.metrics.Metrics;
+import xyz.nickr.telepad.metrics.MetricsSink;
+import xyz.nickr.telepad.outbound.Priority;
+import xyz.nickr.telepad.trace.Trace;
 
 /**
  * Handles all events that Telepad needs to function.
  *
+ * Updates received and time spent handling inline menu buttons are
+ * recorded in the bot's {@link MetricsSink}. Commands and inline menu
+ * button presses are traced by the bot's
+ * {@link xyz.nickr.telepad.trace.Tracer}, if they are sampled.
+ *
+ * Nothing here waits for Telegram: commands are handed to the bot's
+ * {@link xyz.nickr.telepad.command.CommandDispatcher}, inline menu button
+ * presses to its menu executor, and replies are submitted to its
+ * {@link xyz.nickr.telepad.outbound.OutboundScheduler}.
+ *
  * @author Nick Robson
  */
 @Getter
@@ -33,28 +49,46 @@ public class TelepadListener implements Listener {
     @Override
     public void onMessageCallbackQueryReceivedEvent(MessageCallbackQueryReceivedEvent event) {
         MessageCallbackQuery query = event.getCallbackQuery();
+        count("message_callback");
         handleCallback(query.getData(), query.getFrom(), query);
     }
 
     @Override
     public void onInlineCallbackQueryReceivedEvent(InlineCallbackQueryReceivedEvent event) {
         InlineCallbackQuery query = event.getCallbackQuery();
+        count("inline_callback");
         handleCallback(query.getData(), query.getFrom(), query);
     }
 
     @Override
     public void onCommandMessageReceived(CommandMessageReceivedEvent event) {
         bot.getUserCache().store(event.getMessage().getSender());
+        count("command");
 
         if (!event.isBotMentioned())
             return;
 
-        String[] args = event.getArgs();
-        String[] command = new String[args.length + 1];
-        command[0] = event.getCommand();
-        System.arraycopy(args, 0, command, 1, args.length);
+        Trace trace = bot.getTracer().start("command", event.getCommand());
+        try {
+            String[] args = event.getArgs();
+            String[] command = new String[args.length + 1];
+            command[0] = event.getCommand();
+            System.arraycopy(args, 0, command, 1, args.length);
+
+            if (!bot.getCommandDispatcher().dispatch(event.getMessage(), command)) {
+                MetricsSink metrics = bot.getMetricsSink();
+                if (metrics.isEnabled())
+                    metrics.increment(Metrics.LISTENER_REJECTED, "command");
+            }
+        } finally {
+            bot.getTracer().finish(trace);
+        }
+    }
 
-        bot.getCommandManager().exec(event.getMessage(), command);
+    private void count(String update) {
+        MetricsSink metrics = bot.getMetricsSink();
+        if (metrics.isEnabled())
+            metrics.increment(Metrics.LISTENER_UPDATES, update);
     }
 
     /// Handles inline callbacks
@@ -62,43 +96,75 @@ public class TelepadListener implements Listener {
     private void handleCallback(String callback, User user, CallbackQuery query) {
         bot.getUserCache().store(user);
 
+        MetricsSink metrics = bot.getMetricsSink();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        Trace trace = bot.getTracer().start("callback", null);
+        try {
+            bot.getMenuExecutor().execute(Trace.wrap(() -> handleCallback(callback, user, query, start)));
+        } catch (RejectedExecutionException ex) {
+            if (metrics.isEnabled())
+                metrics.increment(Metrics.LISTENER_REJECTED, "callback");
+            System.err.println("Dropped callback from " + user.getUsername() + ": " + ex.getMessage());
+        } finally {
+            bot.getTracer().finish(trace);
+        }
+    }
+
+    private void handleCallback(String callback, User user, CallbackQuery query, long start) {
+        MetricsSink metrics = bot.getMetricsSink();
+        boolean measuring = metrics.isEnabled() && start != 0;
+        String kind = "unknown";
         try {
-            if (callback.startsWith(InlineMenuMessage.CALLBACK_UNIQUE)) {
-                String[] split = callback.split("\\[");
-                if (split.length == 5) {
-                    InlineMenuMessage message = InlineMenuMessage.getMessage(split[1], split[2]);
-                    if (message != null) {
-                        if ((message.getUserPredicate() == null) || message.getUserPredicate().test(user)) {
-                            if (split[3].isEmpty() && bot.getCollator().equals(split[4], "BACK")) {
-                                message.back(false);
-                            } else {
-                                int row = Integer.parseInt(split[3], InlineMenuMessage.RADIX);
-                                int col = Integer.parseInt(split[4], InlineMenuMessage.RADIX);
-                                BiFunction<InlineMenuMessage, User, InlineMenuButtonResponse> func = message.getMenu().getRows().get(row).getButtons().get(col).getCallback();
-                                if (func != null) {
-                                    try {
-                                        InlineMenuButtonResponse response = func.apply(message, user);
-                                        if (response != null) {
-                                            query.answer(response.getText(), response.isAlert());
-                                        }
-                                    } catch (Exception ex) {
-                                        ex.printStackTrace();
+            InlineMenuCallback data = InlineMenuCallback.decode(callback);
+            if (data != null) {
+                kind = data.isBack() ? "back" : "button";
+                InlineMenuMessage message = InlineMenuMessage.getMessage(data.getMessageId(), data.getMenuId());
+                if (message != null) {
+                    if ((message.getUserPredicate() == null) || message.getUserPredicate().test(user)) {
+                        if (data.isBack()) {
+                            message.back(false);
+                        } else {
+                            BiFunction<InlineMenuMessage, User, InlineMenuButtonResponse> func = message.getMenu().getRows().get(data.getRow()).getButtons().get(data.getColumn()).getCallback();
+                            if (func != null) {
+                                int span = Trace.begin("menu.button");
+                                try {
+                                    InlineMenuButtonResponse response = func.apply(message, user);
+                                    if (response != null) {
+                                        answer(query, response.getText(), response.isAlert());
                                     }
+                                } catch (Exception ex) {
+                                    if (measuring)
+                                        metrics.increment(Metrics.CALLBACK_ERRORS, kind);
+                                    ex.printStackTrace();
+                                } finally {
+                                    Trace.end(span);
                                 }
                             }
-                        } else {
-                            query.answer("You are not allowed to use that!", true);
                         }
+                    } else {
+                        answer(query, "You are not allowed to use that!", true);
                     }
                 }
             } else {
                 System.err.println("received unexpected callback from " + user.getUsername() + ": " + callback);
             }
         } catch (Exception ex) {
+            if (measuring)
+                metrics.increment(Metrics.CALLBACK_ERRORS, kind);
             ex.printStackTrace();
+        } finally {
+            if (measuring)
+                metrics.record(Metrics.CALLBACK_LATENCY, kind, System.nanoTime() - start);
         }
     }
 
+    private void answer(CallbackQuery query, String text, boolean alert) {
+        bot.getOutboundScheduler().submit(null, Priority.HIGH, () -> query.answer(text, alert)).whenComplete((answered, ex) -> {
+            if (ex != null)
+                ex.printStackTrace();
+        });
+    }
+
     /// Begin events that are only listened to so that our UserCache is as up to date as possible. ////
 
     @Override
@@ -109,6 +175,7 @@ public class TelepadListener implements Listener {
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
         bot.getUserCache().store(event.getMessage().getSender());
+        count("message");
     }
 
     @Override
@@ -124,6 +191,7 @@ public class TelepadListener implements Listener {
     @Override
     public void onInlineQueryReceived(InlineQueryReceivedEvent event) {
         bot.getUserCache().store(event.getQuery().getSender());
+        count("inline_query");
     }
 
 }
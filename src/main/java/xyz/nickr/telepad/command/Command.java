@@ -8,6 +8,8 @@ import pro.zackpollard.telegrambot.api.chat.message.Message;
 import pro.zackpollard.telegrambot.api.chat.message.send.ParseMode;
 import pro.zackpollard.telegrambot.api.chat.message.send.SendableTextMessage;
 import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.outbound.OutboundScheduler;
+import xyz.nickr.telepad.outbound.Priority;
 import xyz.nickr.telepad.util.Markdown;
 
 /**
@@ -99,10 +101,12 @@ public abstract class Command {
                 .message(string)
                 .parseMode(parseMode != null ? parseMode : ParseMode.NONE)
                 .disableWebPagePreview(true);
+        String chatId = message.getChat().getId();
         try {
-            return message.getChat().sendMessage(builder.replyTo(message).build());
+            return OutboundScheduler.call(message.getBotInstance(), chatId, Priority.NORMAL, () -> message.getChat().sendMessage(builder.replyTo(message).build()));
         } catch (Exception ex) {
-            return message.getChat().sendMessage(builder.build()); // if the message being replied to was deleted, this will make it still work
+            // if the message being replied to was deleted, this will make it still work
+            return OutboundScheduler.call(message.getBotInstance(), chatId, Priority.NORMAL, () -> message.getChat().sendMessage(builder.build()));
         }
     }
 
@@ -116,7 +120,8 @@ public abstract class Command {
      * @return The edited message
      */
     public Message edit(Message message, String string, ParseMode parseMode) {
-        return message.getBotInstance().editMessageText(message, string, parseMode, true, null);
+        return OutboundScheduler.call(message.getBotInstance(), message.getChat().getId(), Priority.NORMAL,
+                () -> message.getBotInstance().editMessageText(message, string, parseMode, true, null));
     }
 
 }
@@ -0,0 +1,325 @@
+package xyz.nickr.telepad.command;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import pro.zackpollard.telegrambot.api.chat.message.Message;
+import pro.zackpollard.telegrambot.api.chat.message.send.SendableTextMessage;
+import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.metrics.Metrics;
+import xyz.nickr.telepad.metrics.MetricsSink;
+import xyz.nickr.telepad.outbound.Priority;
+import xyz.nickr.telepad.trace.Trace;
+import xyz.nickr.telepad.util.AsyncExecutor;
+
+/**
+ * Runs commands off the event thread.
+ *
+ * Commands sent in the same chat are run one at a time, in the order they
+ * were received, while commands in different chats run concurrently.
+ * Chats with commands waiting are queued here, and up to
+ * {@link #getMaxWorkers()} tasks on the executor take turns running a
+ * batch of each chat's commands, so a command never runs on the thread
+ * that dispatched it.
+ *
+ * When too many are queued, the command is rejected and the sender is told
+ * to try again, at most once every {@link #getBusyReplyIntervalMillis()}
+ * in each chat.
+ *
+ * A command carries the trace of the update it came from, if there is
+ * one, onto the thread that executes it.
+ *
+ * @author Nick Robson
+ */
+@Accessors(chain = true)
+public class CommandDispatcher {
+
+    private static final int BATCH_SIZE = 16;
+    private static final int MAX_BUSY_CHATS = 1000;
+    private static final int SWEEP_INTERVAL = 256;
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "telepad-command-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TelepadBot bot;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final Queue<Lane> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final Map<String, Long> busyReplies = new ConcurrentHashMap<>();
+    private final AtomicInteger busyReplyCount = new AtomicInteger();
+
+    @Getter @Setter private volatile AsyncExecutor executor = AsyncExecutor.builder().name("telepad-commands").threads(16).queueCapacity(1000)
+            .rejectionPolicy(AsyncExecutor.RejectionPolicy.ABORT).build();
+    @Getter @Setter private volatile int maxWorkers = 16;
+    @Getter @Setter private volatile int maxQueued = 10000;
+    @Getter @Setter private volatile int maxQueuedPerChat = 50;
+    @Getter @Setter private volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    @Getter @Setter private volatile String busyMessage = "Too busy right now, please try again in a moment.";
+    @Getter @Setter private volatile long busyReplyIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public CommandDispatcher(TelepadBot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * Queues a command to be executed.
+     *
+     * @param msg The message it was sent from
+     * @param command The command name and arguments
+     *
+     * @return False if the command was rejected because too many are queued
+     */
+    public boolean dispatch(Message msg, String[] command) {
+        if (pending.incrementAndGet() > maxQueued) {
+            pending.decrementAndGet();
+            reject(msg, "too many commands queued", "total", Priority.BULK);
+            return false;
+        }
+        String chatId = msg.getChat().getId();
+        boolean[] accepted = new boolean[1];
+        Lane[] created = new Lane[1];
+        lanes.compute(chatId, (k, lane) -> {
+            if (lane == null)
+                lane = created[0] = new Lane(k);
+            if (lane.queue.size() < maxQueuedPerChat) {
+                lane.queue.add(new Task(msg, command));
+                accepted[0] = true;
+            }
+            return (lane == created[0] && lane.queue.isEmpty()) ? null : lane;
+        });
+        if (!accepted[0]) {
+            pending.decrementAndGet();
+            reject(msg, "too many commands queued for the chat", "chat", Priority.NORMAL);
+            return false;
+        }
+        dispatched.increment();
+        if (created[0] != null) {
+            ready.add(created[0]);
+            startWorker();
+        }
+        return true;
+    }
+
+    private void startWorker() {
+        int count;
+        do {
+            count = workers.get();
+            if (count >= maxWorkers)
+                return;
+        } while (!workers.compareAndSet(count, count + 1));
+        try {
+            executor.execute(this::work);
+        } catch (RejectedExecutionException ex) {
+            // the chats stay ready, for the next worker to start
+            workers.decrementAndGet();
+            System.err.println("Failed to start a command worker: " + ex.getMessage());
+        }
+    }
+
+    private void work() {
+        try {
+            Lane lane;
+            while ((lane = ready.poll()) != null) {
+                // a chat with more to run goes to the back, so other chats get a turn
+                if (lane.drain())
+                    ready.add(lane);
+            }
+        } finally {
+            workers.decrementAndGet();
+            // a chat may have become ready after the last poll, but before the decrement
+            if (!ready.isEmpty())
+                startWorker();
+        }
+    }
+
+    /**
+     * Gets the number of commands waiting to be executed.
+     *
+     * @return The number of commands
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Gets the number of commands that were accepted for execution.
+     *
+     * @return The number of commands
+     */
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+
+    /**
+     * Gets the number of commands that were rejected because too many were
+     * queued.
+     *
+     * @return The number of commands
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of commands that ran for longer than the timeout.
+     *
+     * @return The number of commands
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    private void reject(Message msg, String reason, String queue, Priority priority) {
+        rejected.increment();
+        MetricsSink metrics = bot.getMetricsSink();
+        if (metrics.isEnabled())
+            metrics.increment(Metrics.DISPATCHER_REJECTED, queue);
+        String chatId = msg.getChat().getId();
+        System.err.println("Rejected command from chat " + chatId + ": " + reason);
+        String busyMessage = this.busyMessage;
+        if (busyMessage == null || !shouldReplyBusy(chatId))
+            return;
+        bot.getOutboundScheduler().submit(chatId, priority, () -> msg.getChat().sendMessage(SendableTextMessage.plain(busyMessage).replyTo(msg).build()))
+                .whenComplete((sent, ex) -> {
+                    if (ex != null)
+                        ex.printStackTrace();
+                });
+    }
+
+    private boolean shouldReplyBusy(String chatId) {
+        long now = System.nanoTime();
+        long interval = TimeUnit.MILLISECONDS.toNanos(busyReplyIntervalMillis);
+        boolean[] reply = new boolean[1];
+        busyReplies.compute(chatId, (k, last) -> {
+            if (last != null && now - last < interval)
+                return last;
+            reply[0] = true;
+            return now;
+        });
+        // sweep chats that can be replied to again only every so many replies, so it costs O(1) per reply
+        if (reply[0] && busyReplyCount.incrementAndGet() % SWEEP_INTERVAL == 0 && busyReplies.size() > MAX_BUSY_CHATS)
+            busyReplies.values().removeIf(last -> now - last >= interval);
+        return reply[0];
+    }
+
+    private void execute(Task task) {
+        // put back after, as Trace.wrap does, in case the executor's thread has a trace of its own
+        Trace previousTrace = Trace.current();
+        int previousSpan = Trace.currentSpan();
+        // attached even when null, so an untraced command isn't added to the caller's trace
+        Trace.attach(task.trace, task.span);
+        Trace.record("dispatcher.queue", task.queuedNanos, System.nanoTime());
+        int span = Trace.begin("dispatcher.exec");
+        Thread thread = Thread.currentThread();
+        long timeout = this.timeoutMillis;
+        boolean[] finished = new boolean[1];
+        ScheduledFuture<?> interrupter = timeout > 0 ? watchdog.schedule(() -> {
+            synchronized (finished) {
+                if (finished[0])
+                    return;
+                timedOut.increment();
+                MetricsSink metrics = bot.getMetricsSink();
+                if (metrics.isEnabled()) {
+                    Command cmd = bot.getCommandManager().getRegistry().get(task.command[0]);
+                    metrics.increment(Metrics.DISPATCHER_TIMED_OUT, cmd != null ? cmd.getNames()[0] : "");
+                }
+                System.err.println("Command /" + task.command[0] + " timed out after " + timeout + "ms, interrupting");
+                thread.interrupt();
+            }
+        }, timeout, TimeUnit.MILLISECONDS) : null;
+        try {
+            bot.getCommandManager().exec(task.msg, task.command);
+        } finally {
+            if (interrupter != null) {
+                // the watchdog can't interrupt once this is set, so clearing the flag below is final
+                synchronized (finished) {
+                    finished[0] = true;
+                }
+                interrupter.cancel(false);
+            }
+            Thread.interrupted(); // don't let the watchdog's interrupt leak into the next command
+            Trace.end(span);
+            Trace.attach(previousTrace, previousSpan);
+        }
+    }
+
+    private static class Task {
+
+        private final Message msg;
+        private final String[] command;
+        private final Trace trace;
+        private final int span;
+        private final long queuedNanos;
+
+        private Task(Message msg, String[] command) {
+            this.msg = msg;
+            this.command = command;
+            this.trace = Trace.current();
+            this.span = Trace.currentSpan();
+            this.queuedNanos = trace != null ? System.nanoTime() : 0;
+        }
+
+    }
+
+    /**
+     * The commands waiting in a single chat.
+     *
+     * A lane is only in the map while it is ready or being drained, and its
+     * queue is only touched while holding the map's lock for its chat.
+     */
+    private class Lane {
+
+        private final String chatId;
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+
+        private Lane(String chatId) {
+            this.chatId = chatId;
+        }
+
+        /**
+         * Runs a batch of this chat's commands.
+         *
+         * @return True if the chat may have more commands to run
+         */
+        private boolean drain() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Task[] next = new Task[1];
+                lanes.computeIfPresent(chatId, (k, lane) -> {
+                    next[0] = lane.queue.poll();
+                    return next[0] != null ? lane : null;
+                });
+                if (next[0] == null)
+                    return false;
+                pending.decrementAndGet();
+                try {
+                    execute(next[0]);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package xyz.nickr.telepad.command;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Lists every {@link Command} subclass being compiled in a resource, so
+ * {@link CommandManager#registerPackage(String)} can find them without
+ * scanning the classpath.
+ *
+ * This runs automatically when telepad is on the compiler's classpath.
+ * Only public, concrete, top level or static nested classes with a public
+ * no-argument constructor are listed, as those are the only ones that
+ * can be registered by package.
+ *
+ * Every package with a class being compiled is listed too, whether or not
+ * it has any commands, as the index can only be trusted to be complete
+ * for those packages.
+ *
+ * @author Nick Robson
+ */
+@SupportedAnnotationTypes("*")
+public class CommandIndexProcessor extends AbstractProcessor {
+
+    // by name, so the compiler doesn't have to load telepad's classes
+    private static final String COMMAND = "xyz.nickr.telepad.command.Command";
+
+    private final Set<String> commands = new TreeSet<>();
+    private final Set<String> packages = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement command = processingEnv.getElementUtils().getTypeElement(COMMAND);
+        if (command == null)
+            return false;
+        if (roundEnv.processingOver()) {
+            write();
+        } else {
+            TypeMirror commandType = command.asType();
+            for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+                packages.add(processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString());
+                find(type, commandType);
+            }
+        }
+        return false;
+    }
+
+    private void find(TypeElement type, TypeMirror commandType) {
+        if (isRegistrable(type) && processingEnv.getTypeUtils().isSubtype(type.asType(), commandType))
+            commands.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+            find(nested, commandType);
+    }
+
+    private static boolean isRegistrable(TypeElement type) {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (type.getKind() != ElementKind.CLASS || !modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT))
+            return false;
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL && !modifiers.contains(Modifier.STATIC))
+            return false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC))
+                return true;
+        }
+        return false;
+    }
+
+    private void write() {
+        // keep commands from an earlier compilation that weren't recompiled this time
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", CommandScanner.INDEX_RESOURCE);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith(CommandScanner.PACKAGE_PREFIX)) {
+                        String packageName = line.substring(CommandScanner.PACKAGE_PREFIX.length());
+                        if (isStillPackage(packageName))
+                            packages.add(packageName);
+                    } else if (!line.isEmpty() && isStillCommand(line)) {
+                        commands.add(line);
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // there is no earlier index
+        }
+        if (packages.isEmpty())
+            return;
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", CommandScanner.INDEX_RESOURCE);
+            try (Writer writer = index.openWriter()) {
+                for (String name : packages)
+                    writer.write(CommandScanner.PACKAGE_PREFIX + name + "\n");
+                for (String name : commands)
+                    writer.write(name + "\n");
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Failed to write the command index: " + ex);
+        }
+    }
+
+    private boolean isStillPackage(String packageName) {
+        PackageElement element = processingEnv.getElementUtils().getPackageElement(packageName);
+        return element != null && !element.getEnclosedElements().isEmpty();
+    }
+
+    private boolean isStillCommand(String binaryName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        TypeElement command = processingEnv.getElementUtils().getTypeElement(COMMAND);
+        return type != null && isRegistrable(type) && processingEnv.getTypeUtils().isSubtype(type.asType(), command.asType());
+    }
+
+}
@@ -1,35 +1,97 @@
 package xyz.nickr.telepad.command;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import org.reflections.Reflections;
 import pro.zackpollard.telegrambot.api.chat.message.Message;
 import pro.zackpollard.telegrambot.api.chat.message.send.ParseMode;
 import pro.zackpollard.telegrambot.api.chat.message.send.SendableTextMessage;
 import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.metrics.Metrics;
+import xyz.nickr.telepad.metrics.MetricsSink;
+import xyz.nickr.telepad.outbound.Priority;
+import xyz.nickr.telepad.trace.Trace;
 import xyz.nickr.telepad.util.Markdown;
 import xyz.nickr.telepad.util.PaginatedData;
 
 /**
  * Handles registration and execution of commands by users.
  *
+ * Commands are held in an immutable {@link CommandRegistry}, which is
+ * replaced as a whole whenever commands are registered or reloaded, so
+ * commands being executed never see a partially updated set.
+ *
  * @author Nick Robson
  */
 public class CommandManager {
 
+    private static final Pattern BOT_COMMAND_NAME = Pattern.compile("[a-z0-9_]{1,32}");
+
     private final TelepadBot bot;
-    private final Map<String, Command> commandMap = new HashMap<>();
+    private volatile CommandRegistry registry = CommandRegistry.EMPTY;
+    private volatile boolean suggestingCommands;
+
+    private final Set<String> scriptLocations = new CopyOnWriteArraySet<>();
+    private final Object reloadLock = new Object();
+    private volatile ScriptWatcher scriptWatcher;
+
+    private final Command reloadScriptsCommand = new Command("reloadscripts") {
+        @Override
+        public void exec(TelepadBot bot, Message message, String[] args) {
+            Message m = reply(message, "Reloading!", ParseMode.NONE);
+            boolean success = bot.getCommandManager().reloadScripts();
+            if (success) {
+                edit(m, "Reloaded!", ParseMode.NONE);
+            } else {
+                edit(m, "Error! Check the console.", ParseMode.NONE);
+            }
+        }
+    }.setHelp("reloads all loaded scripts").setPermission("script.reload");
 
-    private final Set<String> scriptLocations = new HashSet<>();
-    private boolean hasScriptCommands;
+    private final Command listScriptsCommand = new Command("listscripts") {
+        @Override
+        public void exec(TelepadBot bot, Message message, String[] args) {
+            Set<ScriptedCommand> commands = registry.getCommands()
+                    .stream()
+                    .filter(c -> c instanceof ScriptedCommand)
+                    .map(ScriptedCommand.class::cast)
+                    .collect(Collectors.toSet());
+            if (commands.isEmpty()) {
+                reply(message, "There are no scripts loaded!", ParseMode.NONE);
+            } else {
+                List<String> lines = new LinkedList<>();
+
+                for (ScriptedCommand cmd : commands) {
+                    lines.add(
+                            cmd.getFile().toString() + ":\n" +
+                                    "   /" + String.join(", /", cmd.getNames())
+                    );
+                }
+
+                PaginatedData paginatedData = new PaginatedData(lines, 10);
+                paginatedData.setParseMode(ParseMode.MARKDOWN);
+                paginatedData.send(0, message);
+            }
+        }
+    }.setHelp("lists all loaded scripts").setPermission("script.list");
 
     public CommandManager(TelepadBot bot) {
         this.bot = bot;
@@ -51,7 +113,46 @@ public class CommandManager {
      * @return The commands
      */
     public Set<Command> getCommands() {
-        return new HashSet<>(commandMap.values());
+        return new HashSet<>(registry.getCommands());
+    }
+
+    /**
+     * Gets the current registry of commands.
+     *
+     * @return The registry
+     */
+    public CommandRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets whether to reply to unknown commands with suggestions of
+     * similarly named commands. This is off by default, as bots in groups
+     * also see commands meant for other bots.
+     *
+     * @param suggestingCommands Whether to suggest commands
+     */
+    public void setSuggestingCommands(boolean suggestingCommands) {
+        this.suggestingCommands = suggestingCommands;
+    }
+
+    /**
+     * Gets the commands in the format @BotFather expects for /setcommands,
+     * one {@code name - description} per line.
+     *
+     * Only names Telegram accepts are listed.
+     *
+     * @return The command list
+     */
+    public String getBotFatherCommandList() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Command> entry : registry.getNames().entrySet()) {
+            if (!BOT_COMMAND_NAME.matcher(entry.getKey()).matches())
+                continue;
+            String help = entry.getValue().getHelp();
+            sb.append(entry.getKey()).append(" - ").append(help.isEmpty() ? entry.getKey() : help).append('\n');
+        }
+        return sb.toString();
     }
 
     /**
@@ -60,16 +161,18 @@ public class CommandManager {
      * @param command The command
      */
     public void register(Command command) {
-        Objects.requireNonNull(command, "command cannot be null");
-        for (String name : command.getNames()) {
-            if (name == null) {
-                throw new NullPointerException("command name cannot be null (" + command + ")");
-            }
-        }
+        update(registry -> registry.toBuilder().register(command).build());
         System.out.println("Registering command: " + command + " : " + Arrays.toString(command.getNames()));
-        for (String name : command.getNames()) {
-            commandMap.put(name.toLowerCase(bot.getLocale()), command);
-        }
+    }
+
+    /**
+     * Replaces the registry with an updated copy, atomically with respect
+     * to any other update.
+     *
+     * @param updater Creates the new registry from the current one
+     */
+    private synchronized void update(UnaryOperator<CommandRegistry> updater) {
+        this.registry = updater.apply(registry);
     }
 
     /**
@@ -78,15 +181,35 @@ public class CommandManager {
      * @param packageName The package
      */
     public void registerPackage(String packageName) {
-        Reflections reflections = new Reflections(packageName);
-        Set<Class<? extends Command>> commandClasses = reflections.getSubTypesOf(Command.class);
-        for (Class<? extends Command> commandClass : commandClasses) {
+        registerPackages(packageName);
+    }
+
+    /**
+     * Registers all commands in the given packages.
+     *
+     * Commands listed in the index generated by {@link CommandIndexProcessor}
+     * are found without scanning. Any package with no indexed commands is
+     * scanned for them, with every such package scanned in one pass.
+     *
+     * @param packageNames The packages
+     */
+    public void registerPackages(String... packageNames) {
+        List<Command> commands = new ArrayList<>();
+        for (Class<? extends Command> commandClass : CommandScanner.find(packageNames)) {
             try {
-                register(commandClass.newInstance());
+                commands.add(commandClass.newInstance());
             } catch (ReflectiveOperationException ex) {
                 ex.printStackTrace();
             }
         }
+        update(registry -> {
+            CommandRegistry.CommandRegistryBuilder builder = registry.toBuilder();
+            commands.forEach(builder::register);
+            return builder.build();
+        });
+        for (Command command : commands) {
+            System.out.println("Registering command: " + command + " : " + Arrays.toString(command.getNames()));
+        }
     }
 
     /**
@@ -97,8 +220,13 @@ public class CommandManager {
      * @return Whether or not the file was added successfully.
      */
     public boolean registerScriptFile(File file) {
-        this.scriptLocations.add(file.getPath());
-        return _registerScriptFile(file);
+        if (!file.isFile())
+            throw new IllegalArgumentException("must be a file");
+        // under the reload lock, so a reload running at the same time can't replace it away
+        synchronized (reloadLock) {
+            this.scriptLocations.add(file.getPath());
+            return loadScripts(Collections.singletonList(file), Collections.emptySet(), false);
+        }
     }
 
     /**
@@ -112,127 +240,277 @@ public class CommandManager {
      * @return Whether or not all commands were successfully registered
      */
     public boolean registerScriptDirectory(File dir) {
-        this.scriptLocations.add(dir.getPath());
-        return _registerScriptDirectory(dir);
+        synchronized (reloadLock) {
+            this.scriptLocations.add(dir.getPath());
+            List<File> files = new ArrayList<>();
+            findScripts(dir, files);
+            synchronized (this) {
+                if (scriptWatcher != null) {
+                    try {
+                        scriptWatcher.watch(dir);
+                    } catch (IOException ex) {
+                        System.err.println("Failed to watch " + dir + " for changes");
+                        ex.printStackTrace();
+                    }
+                }
+            }
+            return loadScripts(files, Collections.emptySet(), false);
+        }
     }
 
     /**
      * Reloads all loaded scripts, loading any new ones in directories that are
-     * already registered.
+     * already registered. Scripts that haven't changed are kept as they are.
+     *
+     * The scripts are loaded in parallel into a new registry, which replaces
+     * the current one in a single step, so commands keep resolving to the old
+     * scripts until every script has loaded. If a script fails to load, the
+     * version of it that was already loaded is kept.
      *
      * @return Whether or not all scripts were successfully loaded
      */
     public boolean reloadScripts() {
-        commandMap.remove("reloadscripts");
-        commandMap.remove("listscripts");
-        commandMap.values().removeIf(c -> c instanceof ScriptedCommand);
-
-        this.hasScriptCommands = false;
-
-        boolean state = true;
-        for (String scriptLocation : this.scriptLocations) {
-            File f = new File(scriptLocation);
-            if (f.isFile())
-                state &= _registerScriptFile(f);
-            else if (f.isDirectory())
-                state &= _registerScriptDirectory(f);
+        synchronized (reloadLock) {
+            List<File> files = new ArrayList<>();
+            for (String scriptLocation : this.scriptLocations) {
+                File f = new File(scriptLocation);
+                if (f.isFile())
+                    files.add(f);
+                else if (f.isDirectory())
+                    findScripts(f, files);
+            }
+            return loadScripts(files, Collections.emptySet(), true);
         }
-        return state;
     }
 
     /**
      * Executes a command from a message.
      *
+     * How often each command is used, denied or fails, and how long it
+     * takes, are recorded in the bot's {@link MetricsSink}. Time spent
+     * checking permission is recorded apart from time spent executing.
+     *
      * @param msg The message it was sent from
      * @param command The command name and arguments
      */
     public void exec(Message msg, String[] command) {
         if (command.length == 0)
             return;
-        Command cmd = commandMap.get(command[0].toLowerCase(bot.getLocale()));
-        if (cmd != null) {
+        MetricsSink metrics = bot.getMetricsSink();
+        boolean measuring = metrics.isEnabled();
+        Command cmd = registry.get(command[0]);
+        if (cmd == null) {
+            if (measuring)
+                metrics.increment(Metrics.COMMAND_UNKNOWN, "");
+            if (suggestingCommands) {
+                List<String> suggestions = registry.suggest(command[0], 2, 3);
+                if (!suggestions.isEmpty()) {
+                    bot.getOutboundScheduler().call(msg.getChat().getId(), Priority.NORMAL,
+                            () -> msg.getChat().sendMessage(SendableTextMessage.plain("Unknown command. Did you mean /" + String.join(", /", suggestions) + "?").replyTo(msg).build()));
+                }
+            }
+        } else {
             String[] args = Arrays.copyOfRange(command, 1, command.length);
+            String name = cmd.getNames()[0];
+            long start = measuring ? System.nanoTime() : 0;
+            boolean executing = false;
             try {
-                if (cmd.hasPermission(bot, msg)) {
-                    cmd.exec(bot, msg, args);
+                int span = Trace.begin("permission");
+                boolean permitted;
+                try {
+                    permitted = cmd.hasPermission(bot, msg);
+                } finally {
+                    Trace.end(span);
+                }
+                if (measuring) {
+                    long now = System.nanoTime();
+                    metrics.record(Metrics.PERMISSION_LATENCY, name, now - start);
+                    start = now;
+                }
+                if (permitted) {
+                    executing = true;
+                    if (measuring)
+                        metrics.increment(Metrics.COMMAND_INVOCATIONS, name);
+                    span = Trace.begin("exec", name);
+                    try {
+                        cmd.exec(bot, msg, args);
+                    } finally {
+                        Trace.end(span);
+                    }
                 } else {
-                    msg.getChat().sendMessage(SendableTextMessage.markdown("You don't have permission to use that command!").replyTo(msg).build());
+                    if (measuring)
+                        metrics.increment(Metrics.COMMAND_DENIED, name);
+                    bot.getOutboundScheduler().call(msg.getChat().getId(), Priority.NORMAL,
+                            () -> msg.getChat().sendMessage(SendableTextMessage.markdown("You don't have permission to use that command!").replyTo(msg).build()));
                 }
             } catch (Exception ex) {
-                msg.getChat().sendMessage(SendableTextMessage.markdown("*Error!* " + Markdown.escape(ex.toString(), true)).replyTo(msg).build());
+                if (measuring)
+                    metrics.increment(Metrics.COMMAND_ERRORS, name);
+                // submitted, as the thread may still be interrupted if the command was cancelled
+                bot.getOutboundScheduler().submit(msg.getChat().getId(), Priority.NORMAL,
+                        () -> msg.getChat().sendMessage(SendableTextMessage.markdown("*Error!* " + Markdown.escape(ex.toString(), true)).replyTo(msg).build()))
+                        .whenComplete((sent, failure) -> {
+                            if (failure != null)
+                                failure.printStackTrace();
+                        });
                 ex.printStackTrace();
+            } finally {
+                if (measuring && executing)
+                    metrics.record(Metrics.COMMAND_LATENCY, name, System.nanoTime() - start);
             }
         }
     }
 
-    private boolean _registerScriptFile(File file) {
-        if (!file.isFile())
-            throw new IllegalArgumentException("must be a file");
+    /**
+     * Reloads only the given script files, loading any that are new or
+     * have changed and unregistering any that no longer exist.
+     *
+     * A directory in the list stands for every script in it, so a deleted
+     * directory unregisters all of the scripts that were in it.
+     *
+     * @param paths The script files and directories that changed
+     *
+     * @return Whether or not all scripts were successfully loaded
+     */
+    public boolean reloadScriptFiles(Collection<File> paths) {
+        synchronized (reloadLock) {
+            List<File> files = new ArrayList<>();
+            Set<String> removed = new HashSet<>();
+            for (File path : paths) {
+                if (path.isDirectory()) {
+                    findScripts(path, files);
+                } else if (path.isFile()) {
+                    if (path.getName().endsWith(".js"))
+                        files.add(path);
+                } else {
+                    removed.add(path.getPath());
+                }
+            }
+            // a new directory and the scripts in it may both be listed
+            return loadScripts(new ArrayList<>(new LinkedHashSet<>(files)), removed, false);
+        }
+    }
+
+    /**
+     * Starts watching the registered script directories, and any registered
+     * later, reloading scripts as they are added, changed or deleted.
+     *
+     * @param debounce How long to wait for changes to stop before reloading
+     * @param unit The unit of the wait
+     *
+     * @throws UncheckedIOException If the directories can't be watched
+     */
+    public synchronized void watchScripts(long debounce, TimeUnit unit) {
+        stopWatchingScripts();
         try {
-            register(new ScriptedCommand(file));
-            if (!hasScriptCommands) {
-                hasScriptCommands = true;
-                register(new Command("reloadscripts") {
-                    @Override
-                    public void exec(TelepadBot bot, Message message, String[] args) {
-                        Message m = reply(message, "Reloading!", ParseMode.NONE);
-                        boolean success = bot.getCommandManager().reloadScripts();
-                        if (success) {
-                            edit(m, "Reloaded!", ParseMode.NONE);
-                        } else {
-                            edit(m, "Error! Check the console.", ParseMode.NONE);
-                        }
-                    }
-                }.setHelp("reloads all loaded scripts").setPermission("script.reload"));
-                register(new Command("listscripts") {
-                    @Override
-                    public void exec(TelepadBot bot, Message message, String[] args) {
-                        Set<ScriptedCommand> commands = commandMap.values()
-                                .stream()
-                                .filter(c -> c instanceof ScriptedCommand)
-                                .map(ScriptedCommand.class::cast)
-                                .collect(Collectors.toSet());
-                        if (commands.isEmpty()) {
-                            reply(message, "There are no scripts loaded!", ParseMode.NONE);
-                        } else {
-                            List<String> lines = new LinkedList<>();
-
-                            for (ScriptedCommand cmd : commands) {
-                                lines.add(
-                                        cmd.getFile().toString() + ":\n" +
-                                                "   /" + String.join(", /", cmd.getNames())
-                                );
-                            }
-
-                            PaginatedData paginatedData = new PaginatedData(lines, 10);
-                            paginatedData.setParseMode(ParseMode.MARKDOWN);
-                            paginatedData.send(0, message);
-                        }
-                    }
-                }.setHelp("lists all loaded scripts").setPermission("script.list"));
+            ScriptWatcher watcher = new ScriptWatcher(this, debounce, unit);
+            for (String scriptLocation : this.scriptLocations) {
+                File f = new File(scriptLocation);
+                if (f.isDirectory())
+                    watcher.watch(f);
             }
+            this.scriptWatcher = watcher.start();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Stops watching the script directories, if they are being watched.
+     */
+    public synchronized void stopWatchingScripts() {
+        if (scriptWatcher != null) {
+            scriptWatcher.close();
+            scriptWatcher = null;
+        }
+    }
+
+    /**
+     * Gets the watcher of the script directories.
+     *
+     * @return The watcher, or null if they aren't being watched
+     */
+    public ScriptWatcher getScriptWatcher() {
+        return scriptWatcher;
+    }
+
+    /**
+     * Loads scripts in parallel and then publishes them all at once.
+     *
+     * Scripts whose source hasn't changed since they were last loaded are
+     * kept as they are, rather than being loaded again.
+     *
+     * @param files The script files
+     * @param removed The paths of deleted script files and directories
+     * @param replaceAll Whether to drop any loaded script that isn't in files
+     *
+     * @return Whether or not all scripts were successfully loaded
+     */
+    private boolean loadScripts(List<File> files, Set<String> removed, boolean replaceAll) {
+        Map<String, ScriptedCommand> current = getScripts(registry);
+        Map<String, ScriptedCommand> loaded = new ConcurrentHashMap<>();
+        boolean state = files.parallelStream().map(file -> {
+            try {
+                ScriptedCommand command = current.get(file.getPath());
+                if (command == null || !command.getHash().equals(CompiledScriptCache.hash(Files.readAllBytes(file.toPath()))))
+                    loaded.put(file.getPath(), new ScriptedCommand(file));
+                return true;
+            } catch (Exception ex) {
+                System.err.println("Failed to load " + file + ", keeping the previously loaded version if there is one");
+                ex.printStackTrace();
+                return false;
+            }
+        }).reduce(true, Boolean::logicalAnd);
+
+        update(registry -> {
+            Map<String, ScriptedCommand> previous = getScripts(registry);
+            CommandRegistry.CommandRegistryBuilder builder = registry.toBuilder();
+            builder.removeIf(c -> c instanceof ScriptedCommand && (replaceAll || isRemoved(((ScriptedCommand) c).getFile().getPath(), loaded, removed)));
+            for (File file : files) {
+                ScriptedCommand command = loaded.getOrDefault(file.getPath(), previous.get(file.getPath()));
+                if (command != null)
+                    builder.register(command);
+            }
+            return builder.register(reloadScriptsCommand).register(listScriptsCommand).build();
+        });
+        for (ScriptedCommand command : loaded.values()) {
+            System.out.println("Registering command: " + command + " : " + Arrays.toString(command.getNames()));
+        }
+        return state;
+    }
+
+    private static boolean isRemoved(String path, Map<String, ScriptedCommand> loaded, Set<String> removed) {
+        if (loaded.containsKey(path) || removed.contains(path))
             return true;
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return false;
+        for (String prefix : removed) {
+            if (path.startsWith(prefix + File.separator))
+                return true;
         }
+        return false;
     }
 
-    private boolean _registerScriptDirectory(File dir) {
+    private static Map<String, ScriptedCommand> getScripts(CommandRegistry registry) {
+        Map<String, ScriptedCommand> scripts = new HashMap<>();
+        for (Command command : registry.getCommands()) {
+            if (command instanceof ScriptedCommand)
+                scripts.put(((ScriptedCommand) command).getFile().getPath(), (ScriptedCommand) command);
+        }
+        return scripts;
+    }
+
+    private void findScripts(File dir, List<File> files) {
         if (!dir.isDirectory())
             throw new IllegalArgumentException("must be a directory");
         File[] subFiles = dir.listFiles();
         if (subFiles == null)
             throw new NullPointerException("failed to list directory contents of " + dir.getPath());
-        boolean state = true;
         for (File file : subFiles) {
             if (file.isDirectory()) {
-                state &= _registerScriptDirectory(file);
+                findScripts(file, files);
             } else if (file.isFile() && file.getName().endsWith(".js")) {
-                state &= _registerScriptFile(file);
+                files.add(file);
             }
         }
-        return state;
     }
 
 }
@@ -0,0 +1,303 @@
+package xyz.nickr.telepad.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * An immutable set of commands, indexed by name in a trie.
+ *
+ * Lookups ignore case, lowering each character as it is matched, so
+ * resolving a command name doesn't allocate. The trie also answers
+ * prefix completions and "did you mean" suggestions.
+ *
+ * Registries are never changed once built, so a {@link CommandManager}
+ * can swap in a new one atomically while other threads are still
+ * resolving commands from the old one.
+ *
+ * @author Nick Robson
+ */
+public final class CommandRegistry {
+
+    /**
+     * A registry with no commands in it.
+     */
+    public static final CommandRegistry EMPTY = new CommandRegistry(new TreeMap<>());
+
+    private final Map<String, Command> commands;
+    private final Node root;
+
+    private CommandRegistry(TreeMap<String, Command> commands) {
+        this.commands = Collections.unmodifiableMap(commands);
+        this.root = build(new ArrayList<>(commands.keySet()), 0, commands.size(), 0);
+    }
+
+    /**
+     * Creates a builder for a new registry.
+     *
+     * @return The builder
+     */
+    public static CommandRegistryBuilder builder() {
+        return new CommandRegistryBuilder();
+    }
+
+    /**
+     * Creates a builder for a new registry, starting with every command in
+     * this one.
+     *
+     * @return The builder
+     */
+    public CommandRegistryBuilder toBuilder() {
+        CommandRegistryBuilder builder = new CommandRegistryBuilder();
+        builder.commands.putAll(commands);
+        return builder;
+    }
+
+    /**
+     * Gets the command with a name, ignoring case.
+     *
+     * @param name The name
+     *
+     * @return The command, or null if there is none
+     */
+    public Command get(CharSequence name) {
+        Node node = root;
+        for (int i = 0, j = name.length(); i < j && node != null; i++) {
+            node = node.child(Character.toLowerCase(name.charAt(i)));
+        }
+        return node != null ? node.command : null;
+    }
+
+    /**
+     * Gets every registered name, in lower case, mapped to its command.
+     *
+     * @return The names, in alphabetical order
+     */
+    public Map<String, Command> getNames() {
+        return commands;
+    }
+
+    /**
+     * Gets every distinct registered command.
+     *
+     * @return The commands
+     */
+    public Set<Command> getCommands() {
+        return new LinkedHashSet<>(commands.values());
+    }
+
+    /**
+     * Gets the number of registered names.
+     *
+     * @return The number of names
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Gets every name starting with a prefix, ignoring case.
+     *
+     * @param prefix The prefix
+     *
+     * @return The names, in alphabetical order
+     */
+    public List<String> complete(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(Character.toLowerCase(prefix.charAt(i)));
+        }
+        List<String> names = new ArrayList<>();
+        if (node != null)
+            collect(node, new StringBuilder(normalise(prefix)), names);
+        return names;
+    }
+
+    /**
+     * Gets the names closest to a possibly misspelt name, by edit distance.
+     *
+     * @param name The name
+     * @param maxDistance The largest edit distance to suggest
+     * @param limit The maximum number of names to suggest
+     *
+     * @return The names, closest first
+     */
+    public List<String> suggest(String name, int maxDistance, int limit) {
+        String target = normalise(name);
+        int[] row = new int[target.length() + 1];
+        for (int i = 0; i < row.length; i++)
+            row[i] = i;
+        List<Suggestion> found = new ArrayList<>();
+        for (int i = 0; i < root.keys.length; i++)
+            suggest(root.children[i], root.keys[i], new StringBuilder().append(root.keys[i]), target, row, maxDistance, found);
+        found.sort(Comparator.comparingInt((Suggestion s) -> s.distance).thenComparing(s -> s.name));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < found.size() && i < limit; i++)
+            names.add(found.get(i).name);
+        return names;
+    }
+
+    // walks the trie, computing one row of the edit distance table per node
+    private static void suggest(Node node, char c, StringBuilder path, String target, int[] previous, int maxDistance, List<Suggestion> found) {
+        int[] row = new int[previous.length];
+        row[0] = previous[0] + 1;
+        int best = row[0];
+        for (int i = 1; i < row.length; i++) {
+            int cost = target.charAt(i - 1) == c ? 0 : 1;
+            row[i] = Math.min(Math.min(row[i - 1] + 1, previous[i] + 1), previous[i - 1] + cost);
+            best = Math.min(best, row[i]);
+        }
+        if (node.command != null && row[row.length - 1] <= maxDistance)
+            found.add(new Suggestion(path.toString(), row[row.length - 1]));
+        if (best > maxDistance)
+            return;
+        for (int i = 0; i < node.keys.length; i++) {
+            path.append(node.keys[i]);
+            suggest(node.children[i], node.keys[i], path, target, row, maxDistance, found);
+            path.setLength(path.length() - 1);
+        }
+    }
+
+    private static void collect(Node node, StringBuilder path, List<String> names) {
+        if (node.command != null)
+            names.add(path.toString());
+        for (int i = 0; i < node.keys.length; i++) {
+            path.append(node.keys[i]);
+            collect(node.children[i], path, names);
+            path.setLength(path.length() - 1);
+        }
+    }
+
+    // names are sorted, so each child covers a contiguous range of them
+    private Node build(List<String> names, int from, int to, int depth) {
+        Command command = null;
+        if (from < to && names.get(from).length() == depth)
+            command = commands.get(names.get(from++));
+        List<Character> keys = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        while (from < to) {
+            char c = names.get(from).charAt(depth);
+            int end = from;
+            while (end < to && names.get(end).charAt(depth) == c)
+                end++;
+            keys.add(c);
+            children.add(build(names, from, end, depth + 1));
+            from = end;
+        }
+        char[] keyArray = new char[keys.size()];
+        for (int i = 0; i < keyArray.length; i++)
+            keyArray[i] = keys.get(i);
+        return new Node(keyArray, children.toArray(new Node[0]), command);
+    }
+
+    private static String normalise(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = Character.toLowerCase(chars[i]);
+        return new String(chars);
+    }
+
+    private static final class Node {
+
+        private final char[] keys;
+        private final Node[] children;
+        private final Command command;
+
+        private Node(char[] keys, Node[] children, Command command) {
+            this.keys = keys;
+            this.children = children;
+            this.command = command;
+        }
+
+        private Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+    }
+
+    private static final class Suggestion {
+
+        private final String name;
+        private final int distance;
+
+        private Suggestion(String name, int distance) {
+            this.name = name;
+            this.distance = distance;
+        }
+
+    }
+
+    /**
+     * Builds a {@link CommandRegistry}.
+     */
+    public static class CommandRegistryBuilder {
+
+        private final TreeMap<String, Command> commands = new TreeMap<>();
+
+        private CommandRegistryBuilder() {}
+
+        /**
+         * Registers a command to all of its names, replacing any command
+         * already registered to them.
+         *
+         * @param command The command
+         *
+         * @return This builder
+         */
+        public CommandRegistryBuilder register(Command command) {
+            Objects.requireNonNull(command, "command cannot be null");
+            for (String name : command.getNames()) {
+                if (name == null)
+                    throw new NullPointerException("command name cannot be null (" + command + ")");
+            }
+            for (String name : command.getNames()) {
+                commands.put(normalise(name), command);
+            }
+            return this;
+        }
+
+        /**
+         * Removes the command registered to a name, from that name only.
+         *
+         * @param name The name
+         *
+         * @return This builder
+         */
+        public CommandRegistryBuilder remove(String name) {
+            commands.remove(normalise(name));
+            return this;
+        }
+
+        /**
+         * Removes every command matching a predicate, from all of its names.
+         *
+         * @param predicate The predicate
+         *
+         * @return This builder
+         */
+        public CommandRegistryBuilder removeIf(Predicate<Command> predicate) {
+            commands.values().removeIf(predicate);
+            return this;
+        }
+
+        /**
+         * Builds the registry.
+         *
+         * @return The registry
+         */
+        public CommandRegistry build() {
+            return new CommandRegistry(new TreeMap<>(commands));
+        }
+
+    }
+
+}
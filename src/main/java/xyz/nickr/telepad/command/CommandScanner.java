@@ -0,0 +1,189 @@
+package xyz.nickr.telepad.command;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.util.FilterBuilder;
+
+/**
+ * Finds the {@link Command} classes in packages.
+ *
+ * Packages listed in the index written by {@link CommandIndexProcessor}
+ * were compiled with it, so their commands are found from the index
+ * without touching the classpath. Any other package is scanned instead,
+ * even if some classes in it are indexed, all in one parallel pass, and
+ * what the scan finds is remembered so no package is ever scanned twice.
+ *
+ * A package is only looked up in the index if the index lists it, so
+ * when commands are registered from a package with no classes of its own,
+ * or from a package whose classes were compiled without the processor,
+ * it is scanned. The packages below a listed package are expected to have
+ * been compiled along with it.
+ *
+ * @author Nick Robson
+ */
+final class CommandScanner {
+
+    /**
+     * The resource listing the binary names of indexed commands, one per line.
+     */
+    static final String INDEX_RESOURCE = "META-INF/telepad/commands";
+
+    /**
+     * The prefix of the lines in the index listing the packages it covers.
+     */
+    static final String PACKAGE_PREFIX = "package:";
+
+    private static volatile Index index;
+    private static final Map<String, Set<Class<? extends Command>>> scanned = new ConcurrentHashMap<>();
+
+    private CommandScanner() {}
+
+    /**
+     * Finds the command classes in some packages, and in the packages
+     * below them.
+     *
+     * @param packageNames The packages
+     *
+     * @return The concrete command classes
+     */
+    static Set<Class<? extends Command>> find(String... packageNames) {
+        Set<Class<? extends Command>> classes = new LinkedHashSet<>();
+        List<String> unindexed = new ArrayList<>();
+        Index index = getIndex();
+        for (String packageName : packageNames) {
+            if (index.packages.contains(packageName)) {
+                for (String name : index.commands) {
+                    if (name.startsWith(packageName + ".")) {
+                        Class<? extends Command> commandClass = load(name);
+                        if (commandClass != null)
+                            classes.add(commandClass);
+                    }
+                }
+            } else {
+                Set<Class<? extends Command>> cached = getScanned(packageName);
+                if (cached != null) {
+                    classes.addAll(cached);
+                } else {
+                    unindexed.add(packageName);
+                }
+            }
+        }
+        if (!unindexed.isEmpty())
+            classes.addAll(scan(unindexed));
+        return classes;
+    }
+
+    private static Set<Class<? extends Command>> scan(List<String> packageNames) {
+        String[] packages = packageNames.toArray(new String[0]);
+        Reflections reflections = new Reflections(new ConfigurationBuilder()
+                .forPackages(packages)
+                .filterInputsBy(new FilterBuilder().includePackage(packages))
+                .setScanners(new SubTypesScanner())
+                .useParallelExecutor());
+        Set<Class<? extends Command>> found = new LinkedHashSet<>();
+        for (Class<? extends Command> commandClass : reflections.getSubTypesOf(Command.class)) {
+            if (!Modifier.isAbstract(commandClass.getModifiers()))
+                found.add(commandClass);
+        }
+        for (String packageName : packageNames) {
+            Set<Class<? extends Command>> inPackage = new LinkedHashSet<>();
+            for (Class<? extends Command> commandClass : found) {
+                if (commandClass.getName().startsWith(packageName + "."))
+                    inPackage.add(commandClass);
+            }
+            scanned.put(packageName, Collections.unmodifiableSet(inPackage));
+        }
+        return found;
+    }
+
+    // a package was also scanned if a package above it was
+    private static Set<Class<? extends Command>> getScanned(String packageName) {
+        Set<Class<? extends Command>> cached = scanned.get(packageName);
+        if (cached != null)
+            return cached;
+        for (Map.Entry<String, Set<Class<? extends Command>>> entry : scanned.entrySet()) {
+            if (packageName.startsWith(entry.getKey() + ".")) {
+                Set<Class<? extends Command>> inPackage = new LinkedHashSet<>();
+                for (Class<? extends Command> commandClass : entry.getValue()) {
+                    if (commandClass.getName().startsWith(packageName + "."))
+                        inPackage.add(commandClass);
+                }
+                return inPackage;
+            }
+        }
+        return null;
+    }
+
+    private static Index getIndex() {
+        Index index = CommandScanner.index;
+        if (index == null) {
+            Set<String> commands = new LinkedHashSet<>();
+            Set<String> packages = new LinkedHashSet<>();
+            try {
+                Enumeration<URL> resources = getClassLoader().getResources(INDEX_RESOURCE);
+                while (resources.hasMoreElements()) {
+                    URL url = resources.nextElement();
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            line = line.trim();
+                            if (line.startsWith(PACKAGE_PREFIX)) {
+                                packages.add(line.substring(PACKAGE_PREFIX.length()));
+                            } else if (!line.isEmpty()) {
+                                commands.add(line);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Failed to read the command index, scanning the classpath instead");
+                ex.printStackTrace();
+            }
+            CommandScanner.index = index = new Index(commands, packages);
+        }
+        return index;
+    }
+
+    private static Class<? extends Command> load(String name) {
+        try {
+            return Class.forName(name, false, getClassLoader()).asSubclass(Command.class);
+        } catch (ClassNotFoundException | ClassCastException | LinkageError ex) {
+            System.err.println("Failed to load indexed command " + name);
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private static ClassLoader getClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : CommandScanner.class.getClassLoader();
+    }
+
+    private static final class Index {
+
+        private final Set<String> commands;
+        private final Set<String> packages;
+
+        private Index(Set<String> commands, Set<String> packages) {
+            this.commands = Collections.unmodifiableSet(commands);
+            this.packages = Collections.unmodifiableSet(packages);
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package xyz.nickr.telepad.command;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * Caches compiled scripts by the hash of their source, so reloading a
+ * script that hasn't changed, or loading the same source from two files,
+ * doesn't compile it again.
+ *
+ * @author Nick Robson
+ */
+public class CompiledScriptCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Compilable compiler;
+    private final int maxSize;
+    private final Map<String, CompiledScript> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache holding at most a given number of compiled scripts,
+     * evicting the least recently used once full.
+     *
+     * @param compiler The engine to compile scripts with
+     * @param maxSize The maximum number of scripts
+     */
+    public CompiledScriptCache(Compilable compiler, int maxSize) {
+        this.compiler = compiler;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > CompiledScriptCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Hashes the source of a script.
+     *
+     * @param source The source, as bytes
+     *
+     * @return The hash, in hexadecimal
+     */
+    public static String hash(byte[] source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source);
+            char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Gets a compiled script, compiling and caching it if there is none.
+     *
+     * @param hash The hash of the source, from {@link #hash(byte[])}
+     * @param source The source
+     *
+     * @return The compiled script
+     *
+     * @throws ScriptException If the script doesn't compile
+     */
+    public CompiledScript get(String hash, String source) throws ScriptException {
+        CompiledScript script;
+        synchronized (this) {
+            script = cache.get(hash);
+        }
+        if (script != null) {
+            hits.increment();
+            return script;
+        }
+        misses.increment();
+        script = compiler.compile(source);
+        synchronized (this) {
+            cache.put(hash, script);
+        }
+        return script;
+    }
+
+    /**
+     * Removes all compiled scripts from the cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Gets the number of compiled scripts currently cached.
+     *
+     * @return The number of scripts
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the number of lookups that found a compiled script.
+     *
+     * @return The number of lookups
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to compile the script.
+     *
+     * @return The number of lookups
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+}
@@ -0,0 +1,377 @@
+package xyz.nickr.telepad.command;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import xyz.nickr.telepad.metrics.Metrics;
+import xyz.nickr.telepad.metrics.MetricsSink;
+import xyz.nickr.telepad.metrics.NoopMetricsSink;
+import xyz.nickr.telepad.util.AsyncExecutor;
+
+/**
+ * Runs scripts on their own threads, with a deadline for each invocation
+ * and a limit on how many run at once.
+ *
+ * The caller waits for the script until its deadline. A script that misses
+ * it is interrupted and the caller gets an exception, but scripts can't be
+ * forcibly stopped, so one that ignores the interrupt keeps its thread and
+ * its slot until it returns. Until then it is counted as overrunning, and
+ * further invocations of the same script are rejected straight away.
+ *
+ * Each script also has a limit on how many of its invocations can be in
+ * flight at once, overrunning or not, so that a runaway script invoked
+ * many times before its first deadline can only hold that many slots.
+ *
+ * @author Nick Robson
+ */
+public class ScriptExecutor {
+
+    private static final int RUNNING = 0, FINISHED = 1, ABANDONED = 2;
+
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final AsyncExecutor executor;
+    private final Map<Object, Integer> overrunningScripts = new ConcurrentHashMap<>();
+    private final Map<Object, Integer> inFlightScripts = new ConcurrentHashMap<>();
+
+    private volatile long timeoutMillis;
+    private volatile int maxPerScript;
+    private volatile MetricsSink metricsSink = NoopMetricsSink.INSTANCE;
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger overrunning = new AtomicInteger();
+
+    /**
+     * Creates an executor that runs up to twice as many scripts at once as
+     * there are processors, with a ten second deadline, and lets a single
+     * script take up to a quarter of them.
+     */
+    public ScriptExecutor() {
+        this(Math.max(2, 2 * Runtime.getRuntime().availableProcessors()), 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates an executor that lets a single script take up to a quarter
+     * of its slots.
+     *
+     * @param maxConcurrent The most scripts that can run at once
+     * @param timeout The deadline for each invocation
+     * @param unit The unit of the deadline
+     */
+    public ScriptExecutor(int maxConcurrent, long timeout, TimeUnit unit) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+        this.executor = AsyncExecutor.builder().name("telepad-scripts").threads(maxConcurrent).queueCapacity(0).build();
+        setTimeout(timeout, unit);
+        setMaxPerScript(Math.max(1, maxConcurrent / 4));
+    }
+
+    /**
+     * Sets the most invocations of a single script that can be in flight at
+     * once, including ones running past their deadline.
+     *
+     * @param maxPerScript The limit
+     */
+    public void setMaxPerScript(int maxPerScript) {
+        if (maxPerScript < 1)
+            throw new IllegalArgumentException("maxPerScript must be positive");
+        this.maxPerScript = maxPerScript;
+    }
+
+    /**
+     * Sets where rejected, timed out and overrunning invocations are counted,
+     * by the name of the script's command. The bot sets this to its own sink.
+     *
+     * @param metricsSink The sink
+     */
+    public void setMetricsSink(MetricsSink metricsSink) {
+        this.metricsSink = Objects.requireNonNull(metricsSink, "metrics sink cannot be null");
+    }
+
+    /**
+     * Gets the most invocations of a single script that can be in flight at once.
+     *
+     * @return The limit
+     */
+    public int getMaxPerScript() {
+        return maxPerScript;
+    }
+
+    /**
+     * Sets the deadline for each invocation.
+     *
+     * @param timeout The deadline
+     * @param unit The unit of the deadline
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Runs a script, waiting for it to finish.
+     *
+     * If every slot is taken, this waits for one until the deadline.
+     *
+     * @param script The script, used to recognise invocations of the same script
+     * @param task Invokes the script
+     *
+     * @throws IllegalStateException If the script was rejected or missed its
+     *                               deadline, or the caller was interrupted, in
+     *                               which case its interrupt flag is left set
+     */
+    public void execute(Object script, Runnable task) {
+        long timeout = this.timeoutMillis;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        if (overrunningScripts.containsKey(script)) {
+            reject(script);
+            throw new IllegalStateException("script is still running past an earlier deadline");
+        }
+        // taken before a slot, so that one script can't queue up for every slot
+        if (!enter(script)) {
+            reject(script);
+            throw new IllegalStateException("too many invocations of the script are running");
+        }
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                exit(script);
+                reject(script);
+                throw new IllegalStateException("too many scripts are running");
+            }
+        } catch (InterruptedException ex) {
+            exit(script);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a slot to run the script", ex);
+        }
+
+        Invocation invocation = new Invocation(script, task);
+        try {
+            executor.execute(invocation);
+        } catch (RuntimeException ex) {
+            permits.release();
+            exit(script);
+            throw ex;
+        }
+
+        boolean done;
+        try {
+            done = invocation.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            invocation.abandon(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the script", ex);
+        }
+        if (!done && invocation.abandon(true))
+            throw new IllegalStateException("script timed out after " + timeout + "ms");
+
+        Throwable error = invocation.error;
+        if (error != null) {
+            failed.increment();
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            throw new RuntimeException(error);
+        }
+        executed.increment();
+    }
+
+    private void reject(Object script) {
+        rejected.increment();
+        count(Metrics.SCRIPT_REJECTED, script);
+    }
+
+    private void count(String metric, Object script) {
+        MetricsSink metrics = this.metricsSink;
+        if (metrics.isEnabled())
+            metrics.increment(metric, script instanceof Command ? ((Command) script).getNames()[0] : String.valueOf(script));
+    }
+
+    private boolean enter(Object script) {
+        int max = this.maxPerScript;
+        boolean[] entered = new boolean[1];
+        inFlightScripts.compute(script, (k, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= max)
+                return count;
+            entered[0] = true;
+            return current + 1;
+        });
+        return entered[0];
+    }
+
+    private void exit(Object script) {
+        inFlightScripts.computeIfPresent(script, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Gets the deadline for each invocation.
+     *
+     * @return The deadline, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Gets the most scripts that can run at once.
+     *
+     * @return The limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Gets the number of scripts running right now, including overrunning ones.
+     *
+     * @return The number of scripts
+     */
+    public int getRunningCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Gets the number of invocations that finished within their deadline.
+     *
+     * @return The number of invocations
+     */
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    /**
+     * Gets the number of invocations that threw an exception within their deadline.
+     *
+     * @return The number of invocations
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Gets the number of invocations that missed their deadline.
+     *
+     * @return The number of invocations
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Gets the number of invocations that were never run, because no slot
+     * freed up in time, or the script was still overrunning or already had
+     * as many invocations in flight as it is allowed.
+     *
+     * @return The number of invocations
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of invocations still running past their deadline.
+     *
+     * @return The number of invocations
+     */
+    public int getOverrunningCount() {
+        return overrunning.get();
+    }
+
+    /**
+     * Shuts down the threads once the running scripts have finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScriptExecutor{running=%d/%d, executed=%d, failed=%d, timedOut=%d, rejected=%d, overrunning=%d}",
+                getRunningCount(), maxConcurrent, getExecutedCount(), getFailedCount(), getTimedOutCount(), getRejectedCount(), getOverrunningCount());
+    }
+
+    private final class Invocation implements Runnable {
+
+        private final Object script;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Thread thread;
+        private volatile Throwable error;
+
+        private Invocation(Object script, Runnable task) {
+            this.script = script;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                // skip scripts whose caller stopped waiting before they started
+                if (state.get() == RUNNING)
+                    task.run();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                thread = null;
+                permits.release();
+                exit(script);
+                if (!state.compareAndSet(RUNNING, FINISHED)) {
+                    removeOverrun();
+                    if (error != null && !(error instanceof InterruptedException) && !(error.getCause() instanceof InterruptedException)) {
+                        System.err.println("Script " + script + " failed after its deadline");
+                        error.printStackTrace();
+                    }
+                }
+                done.countDown();
+            }
+        }
+
+        /**
+         * Gives up on this invocation, interrupting it if it is running.
+         *
+         * @param timedOut Whether it missed its deadline
+         *
+         * @return False if it had already finished
+         */
+        private boolean abandon(boolean timedOut) {
+            // counted first, so that it can't be uncounted by run() before it is counted
+            overrunning.incrementAndGet();
+            overrunningScripts.merge(script, 1, Integer::sum);
+            if (!state.compareAndSet(RUNNING, ABANDONED)) {
+                removeOverrun();
+                return false;
+            }
+            count(Metrics.SCRIPT_OVERRUNS, script);
+            if (timedOut) {
+                ScriptExecutor.this.timedOut.increment();
+                count(Metrics.SCRIPT_TIMED_OUT, script);
+            }
+            Thread thread = this.thread;
+            if (thread != null)
+                thread.interrupt();
+            return true;
+        }
+
+        private void removeOverrun() {
+            overrunning.decrementAndGet();
+            overrunningScripts.computeIfPresent(script, (k, count) -> count > 1 ? count - 1 : null);
+        }
+
+    }
+
+}
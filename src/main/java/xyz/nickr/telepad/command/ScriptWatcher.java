@@ -0,0 +1,198 @@
+package xyz.nickr.telepad.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches script directories, and reloads the scripts in them that are
+ * added, changed or deleted.
+ *
+ * Editors often write a file several times when saving it, so changes are
+ * collected until none have been seen for the debounce time, and are then
+ * reloaded together. Files that are written without their contents
+ * changing are not reloaded at all.
+ *
+ * @author Nick Robson
+ */
+public class ScriptWatcher implements AutoCloseable {
+
+    private static final int MAX_DEBOUNCES = 10;
+
+    private final CommandManager manager;
+    private final WatchService watchService;
+    private final long debounceNanos;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+
+    /**
+     * Creates a watcher, which doesn't watch anything until told to.
+     *
+     * @param manager The manager to reload scripts in
+     * @param debounce How long to wait for changes to stop before reloading
+     * @param unit The unit of the wait
+     *
+     * @throws IOException If the file system can't be watched
+     */
+    public ScriptWatcher(CommandManager manager, long debounce, TimeUnit unit) throws IOException {
+        this.manager = manager;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.debounceNanos = unit.toNanos(debounce);
+        this.thread = new Thread(this::run, "telepad-script-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching, on a thread of its own.
+     *
+     * @return This object
+     */
+    public ScriptWatcher start() {
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Watches a directory, and all directories below it.
+     *
+     * @param dir The directory
+     *
+     * @throws IOException If the directory can't be watched
+     */
+    public void watch(File dir) throws IOException {
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = path.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, path);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Gets the number of file changes seen.
+     *
+     * @return The number of changes
+     */
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    /**
+     * Gets the number of times scripts were reloaded.
+     *
+     * @return The number of reloads
+     */
+    public long getReloadCount() {
+        return reloads.sum();
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void run() {
+        Set<Path> pending = new LinkedHashSet<>();
+        boolean overflowed = false;
+        long first = 0, last = 0;
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty() && !overflowed) {
+                    key = watchService.take();
+                } else {
+                    // wait for changes to stop, but not forever if they never do
+                    long wait = Math.min(last + debounceNanos, first + MAX_DEBOUNCES * debounceNanos) - System.nanoTime();
+                    key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (key == null) {
+                        reload(pending, overflowed);
+                        pending.clear();
+                        overflowed = false;
+                        continue;
+                    }
+                }
+                long now = System.nanoTime();
+                if (pending.isEmpty() && !overflowed)
+                    first = now;
+                last = now;
+
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    events.increment();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        overflowed = true;
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            watch(path.toFile());
+                        } catch (IOException ex) {
+                            System.err.println("Failed to watch " + path + " for changes");
+                            ex.printStackTrace();
+                        }
+                        pending.add(path);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE || path.toString().endsWith(".js")) {
+                        // a deleted path may have been a directory of scripts
+                        pending.add(path);
+                    }
+                }
+                if (!key.reset())
+                    directories.remove(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // closed
+        }
+    }
+
+    private void reload(Set<Path> paths, boolean everything) {
+        reloads.increment();
+        try {
+            if (everything) {
+                manager.reloadScripts();
+            } else {
+                List<File> files = new ArrayList<>(paths.size());
+                for (Path path : paths)
+                    files.add(path.toFile());
+                manager.reloadScriptFiles(files);
+            }
+        } catch (Exception ex) {
+            System.err.println("Failed to reload changed scripts");
+            ex.printStackTrace();
+        }
+    }
+
+}
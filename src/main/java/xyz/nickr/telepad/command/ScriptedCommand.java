@@ -1,41 +1,76 @@
 package xyz.nickr.telepad.command;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.script.Bindings;
-import javax.script.Invocable;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import lombok.AccessLevel;
 import lombok.Getter;
 import pro.zackpollard.telegrambot.api.chat.message.Message;
 import pro.zackpollard.telegrambot.api.chat.message.send.ParseMode;
 import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.trace.Trace;
 import xyz.nickr.telepad.util.TriFunction;
 
 /**
  * Represents a {@link Command} executed by a script.
  *
+ * Scripts are compiled once by a shared engine, and cached by the hash of
+ * their source. Each command keeps a small pool of script contexts, each
+ * with its own globals, so concurrent executions of the same script don't
+ * share state or contend for a single engine. Global variables therefore
+ * only persist within a context, not across every execution.
+ *
+ * Executions run through the bot's {@link ScriptExecutor}, which limits
+ * how long each one may take and how many run at once.
+ *
+ * Scripts need a compiling JavaScript engine, such as Nashorn, which not
+ * every JDK has. Without one, loading a script throws an
+ * {@link IllegalStateException}.
+ *
  * @author Nick Robson
  */
 @Getter
 public final class ScriptedCommand extends Command {
 
     private static final ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
+    // null if there is no engine, so that loading this class never fails
+    private static final ScriptEngine engine = findEngine();
+    private static final CompiledScriptCache scriptCache = engine != null ? new CompiledScriptCache((Compilable) engine, 256) : null;
+
+    private static final CompiledScript NAMES = compile("names = Java.to(names, 'java.lang.String[]')");
+    private static final CompiledScript SETUP = compile(
+            "System = Java.type('java.lang.System');"
+            + "String = Java.type('java.lang.String');"
+            + "ParseMode = Java.type('" + ParseMode.class.getName() + "');"
+            + "escape = function(message, state) { return _escape(message, state !== undefined ? state : true); };"
+            + "reply = function(message, string, parseMode) { return _reply(message, string, parseMode ? parseMode : ParseMode.NONE); };"
+            + "edit = function(message, string, parseMode) { return _edit(message, string, parseMode ? parseMode : ParseMode.NONE); };");
+    private static final CompiledScript INVOKER = compile("onExecute(__bot, __message, __args)");
+
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
 
     private final File file;
 
-    private ScriptEngine engine;
-    private Invocable invocable;
-    private Bindings bindings;
+    private String hash;
     private String[] names;
+    @Getter(AccessLevel.NONE) private volatile ContextPool pool;
 
     public ScriptedCommand(File file) {
         super(null);
@@ -43,58 +78,90 @@ public final class ScriptedCommand extends Command {
         this.reload();
     }
 
+    /**
+     * Gets the cache of compiled scripts shared by all scripted commands.
+     *
+     * @return The cache
+     *
+     * @throws IllegalStateException If there is no JavaScript engine
+     */
+    public static CompiledScriptCache getScriptCache() {
+        requireEngine();
+        return scriptCache;
+    }
+
     /**
      * Reloads this script.
      */
     public void reload() {
         if (!this.file.isFile())
             throw new IllegalArgumentException(file.toString() + " has to be a file");
+        requireEngine();
+
+        try {
+            byte[] source = Files.readAllBytes(file.toPath());
+            String hash = CompiledScriptCache.hash(source);
+            CompiledScript script = scriptCache.get(hash, new String(source, Charset.defaultCharset()));
+
+            ScriptContext context = createContext(script);
+            this.names = (String[]) context.getAttribute("names", ScriptContext.ENGINE_SCOPE);
+            this.hash = hash;
+            this.pool = new ContextPool(script, context);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (ScriptException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
 
-        this.engine = scriptEngineManager.getEngineByName("JavaScript");
-        this.invocable = (Invocable) engine;
+    private ScriptContext createContext(CompiledScript script) throws ScriptException {
+        Bindings bindings = engine.createBindings();
+        bindings.put("_escape", (BiFunction<String, Boolean, String>) Command::escape);
 
-        this.bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
-        this.bindings.put("_escape", (BiFunction<String, Boolean, String>) Command::escape);
+        bindings.put("sendUsage", (Consumer<Message>) this::sendUsage);
+        bindings.put("hasPermission", (BiPredicate<TelepadBot, Message>) this::hasPermission);
 
-        this.bindings.put("sendUsage", (Consumer<Message>) this::sendUsage);
-        this.bindings.put("hasPermission", (BiPredicate<TelepadBot, Message>) this::hasPermission);
+        bindings.put("setHelp", (Function<String, Command>) this::setHelp);
+        bindings.put("setPermission", (Function<String, Command>) this::setPermission);
+        bindings.put("setUsage", (Function<String, Command>) this::setUsage);
 
-        this.bindings.put("setHelp", (Function<String, Command>) this::setHelp);
-        this.bindings.put("setPermission", (Function<String, Command>) this::setPermission);
-        this.bindings.put("setUsage", (Function<String, Command>) this::setUsage);
+        bindings.put("_reply", (TriFunction<Message, String, ParseMode, Message>) this::reply);
+        bindings.put("_edit", (TriFunction<Message, String, ParseMode, Message>) this::edit);
 
-        this.bindings.put("_reply", (TriFunction<Message, String, ParseMode, Message>) this::reply);
-        this.bindings.put("_edit", (TriFunction<Message, String, ParseMode, Message>) this::edit);
+        ScriptContext context = new SimpleScriptContext();
+        context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+        context.setBindings(engine.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
 
-        try {
-            FileReader reader = new FileReader(this.file);
-            engine.eval(reader);
+        script.eval(context);
 
-            Object names = engine.get("names");
-            if (names == null)
-                throw new IllegalStateException("script must declare a `names` array");
-            engine.eval("names = Java.to(names, 'java.lang.String[]')");
-            Object onExecute = engine.get("onExecute");
-            if (onExecute == null)
-                throw new IllegalStateException("script must declare an `onExecute` function");
+        if (bindings.get("names") == null)
+            throw new IllegalStateException("script must declare a `names` array");
+        NAMES.eval(context);
+        if (bindings.get("onExecute") == null)
+            throw new IllegalStateException("script must declare an `onExecute` function");
 
-            setupEngine();
+        SETUP.eval(context);
+        return context;
+    }
 
-            this.names = (String[]) engine.get("names");
-        } catch (IOException ex) {
-            throw new UncheckedIOException(ex);
-        } catch (ScriptException ex) {
-            throw new RuntimeException(ex);
-        }
+    private static ScriptEngine findEngine() {
+        ScriptEngine engine = scriptEngineManager.getEngineByName("JavaScript");
+        return engine instanceof Compilable ? engine : null;
+    }
+
+    private static void requireEngine() {
+        if (engine == null)
+            throw new IllegalStateException("no JavaScript engine that can compile scripts is available, such as Nashorn");
     }
 
-    private void setupEngine() throws ScriptException {
-        engine.eval("System = Java.type('java.lang.System')");
-        engine.eval("String = Java.type('java.lang.String')");
-        engine.eval("ParseMode = Java.type('" + ParseMode.class.getName() + "')");
-        engine.eval("escape = function(message, state) { return _escape(message, state !== undefined ? state : true); }");
-        engine.eval("reply = function(message, string, parseMode) { return _reply(message, string, parseMode ? parseMode : ParseMode.NONE); }");
-        engine.eval("edit = function(message, string, parseMode) { return _edit(message, string, parseMode ? parseMode : ParseMode.NONE); }");
+    private static CompiledScript compile(String source) {
+        if (engine == null)
+            return null;
+        try {
+            return ((Compilable) engine).compile(source);
+        } catch (ScriptException ex) {
+            throw new IllegalStateException(ex);
+        }
     }
 
     @Override
@@ -109,10 +176,72 @@ public final class ScriptedCommand extends Command {
 
     @Override
     public void exec(TelepadBot bot, Message message, String[] args) {
+        bot.getScriptExecutor().execute(this, Trace.wrap(() -> invoke(bot, message, args)));
+    }
+
+    private void invoke(TelepadBot bot, Message message, String[] args) {
+        ContextPool pool = this.pool;
+        ScriptContext context;
+        try {
+            context = pool.borrow();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a script context", ex);
+        } catch (ScriptException ex) {
+            throw new RuntimeException(ex);
+        }
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
         try {
-            invocable.invokeFunction("onExecute", bot, message, args);
-        } catch (ScriptException | NoSuchMethodException ex) {
-            ex.printStackTrace();
+            bindings.put("__bot", bot);
+            bindings.put("__message", message);
+            bindings.put("__args", args);
+            INVOKER.eval(context);
+        } catch (ScriptException ex) {
+            // rethrown so that the executor and the command manager count and report it
+            throw new RuntimeException(ex);
+        } finally {
+            bindings.remove("__bot");
+            bindings.remove("__message");
+            bindings.remove("__args");
+            pool.release(context);
+        }
+    }
+
+    /**
+     * The contexts a script is executed in, created as they are needed up
+     * to a fixed number.
+     */
+    private final class ContextPool {
+
+        private final CompiledScript script;
+        private final BlockingQueue<ScriptContext> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+        private final AtomicInteger created = new AtomicInteger(1);
+
+        private ContextPool(CompiledScript script, ScriptContext first) {
+            this.script = script;
+            this.idle.add(first);
         }
+
+        private ScriptContext borrow() throws InterruptedException, ScriptException {
+            ScriptContext context = idle.poll();
+            if (context != null)
+                return context;
+            if (created.incrementAndGet() <= POOL_SIZE) {
+                try {
+                    return createContext(script);
+                } catch (ScriptException | RuntimeException ex) {
+                    created.decrementAndGet();
+                    throw ex;
+                }
+            }
+            created.decrementAndGet();
+            return idle.take();
+        }
+
+        private void release(ScriptContext context) {
+            idle.offer(context);
+        }
+
     }
+
 }
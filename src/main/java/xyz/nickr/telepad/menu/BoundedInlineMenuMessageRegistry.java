@@ -0,0 +1,276 @@
+package xyz.nickr.telepad.menu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * An {@link InlineMenuMessageRegistry} that evicts messages once it grows
+ * too large, once a message has not been used for too long, or once a chat
+ * has too many messages registered.
+ *
+ * Lookups and registrations are O(1), with idle messages being expired
+ * as a side effect of either.
+ *
+ * @author Nick Robson
+ */
+public class BoundedInlineMenuMessageRegistry implements InlineMenuMessageRegistry {
+
+    /**
+     * Represents the reasons that a message can be evicted from the registry.
+     */
+    public enum EvictionCause {
+
+        /**
+         * The registry held too many messages.
+         */
+        SIZE,
+
+        /**
+         * The message had not been used for longer than the idle time.
+         */
+        IDLE,
+
+        /**
+         * The message's chat held too many messages.
+         */
+        CHAT_LIMIT
+    }
+
+    private final int maxSize;
+    private final int maxPerChat;
+    private final long maxIdleNanos;
+    private final BiConsumer<InlineMenuMessage, EvictionCause> evictionListener;
+
+    // access-ordered, so the eldest entry is always the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, LinkedHashSet<String>> chats = new HashMap<>();
+
+    private BoundedInlineMenuMessageRegistry(int maxSize, int maxPerChat, long maxIdleNanos, BiConsumer<InlineMenuMessage, EvictionCause> evictionListener) {
+        this.maxSize = maxSize;
+        this.maxPerChat = maxPerChat;
+        this.maxIdleNanos = maxIdleNanos;
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    public void register(InlineMenuMessage message) {
+        Objects.requireNonNull(message, "message cannot be null");
+        String chatId = message.getMessage().getChat().getId();
+        List<Eviction> evicted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            Entry old = entries.put(message.getId(), new Entry(message, chatId, now));
+            if (old != null)
+                unlinkChat(old, message.getId());
+
+            LinkedHashSet<String> chat = chats.computeIfAbsent(chatId, k -> new LinkedHashSet<>());
+            chat.add(message.getId());
+
+            expire(now, evicted);
+            if (maxPerChat > 0) {
+                Iterator<String> it = chat.iterator();
+                while (chat.size() > maxPerChat) {
+                    String id = it.next();
+                    it.remove();
+                    evicted.add(new Eviction(entries.remove(id).message, EvictionCause.CHAT_LIMIT));
+                }
+            }
+            if (maxSize > 0) {
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                while (entries.size() > maxSize) {
+                    Map.Entry<String, Entry> eldest = it.next();
+                    it.remove();
+                    unlinkChat(eldest.getValue(), eldest.getKey());
+                    evicted.add(new Eviction(eldest.getValue().message, EvictionCause.SIZE));
+                }
+            }
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public InlineMenuMessage get(String id) {
+        List<Eviction> evicted = new ArrayList<>();
+        InlineMenuMessage message = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            expire(now, evicted);
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                entry.lastAccess = now;
+                message = entry.message;
+            }
+        }
+        notifyEvicted(evicted);
+        return message;
+    }
+
+    @Override
+    public InlineMenuMessage remove(String id) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(id);
+            if (entry == null)
+                return null;
+            unlinkChat(entry, id);
+        }
+        InlineMenuMessage.getMarkupCache().invalidate(id);
+        return entry.message;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void expire(long now, List<Eviction> evicted) {
+        if (maxIdleNanos <= 0)
+            return;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (now - eldest.getValue().lastAccess < maxIdleNanos)
+                break;
+            it.remove();
+            unlinkChat(eldest.getValue(), eldest.getKey());
+            evicted.add(new Eviction(eldest.getValue().message, EvictionCause.IDLE));
+        }
+    }
+
+    private void unlinkChat(Entry entry, String id) {
+        LinkedHashSet<String> chat = chats.get(entry.chatId);
+        if (chat != null) {
+            chat.remove(id);
+            if (chat.isEmpty())
+                chats.remove(entry.chatId);
+        }
+    }
+
+    private void notifyEvicted(List<Eviction> evicted) {
+        for (Eviction eviction : evicted)
+            InlineMenuMessage.getMarkupCache().invalidate(eviction.message.getId());
+        if (evictionListener == null)
+            return;
+        for (Eviction eviction : evicted) {
+            try {
+                evictionListener.accept(eviction.message, eviction.cause);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates a builder for making a registry.
+     *
+     * @return The builder
+     */
+    public static BoundedInlineMenuMessageRegistryBuilder builder() {
+        return new BoundedInlineMenuMessageRegistryBuilder();
+    }
+
+    private static class Entry {
+
+        private final InlineMenuMessage message;
+        private final String chatId;
+        private long lastAccess;
+
+        private Entry(InlineMenuMessage message, String chatId, long lastAccess) {
+            this.message = message;
+            this.chatId = chatId;
+            this.lastAccess = lastAccess;
+        }
+
+    }
+
+    private static class Eviction {
+
+        private final InlineMenuMessage message;
+        private final EvictionCause cause;
+
+        private Eviction(InlineMenuMessage message, EvictionCause cause) {
+            this.message = message;
+            this.cause = cause;
+        }
+
+    }
+
+    public static class BoundedInlineMenuMessageRegistryBuilder {
+
+        private int maxSize = 10000;
+        private int maxPerChat = 0;
+        private long maxIdleNanos = TimeUnit.DAYS.toNanos(1);
+        private BiConsumer<InlineMenuMessage, EvictionCause> evictionListener;
+
+        /**
+         * Sets the maximum number of messages held by the registry.
+         *
+         * @param maxSize The maximum size, or 0 for no limit
+         *
+         * @return This instance
+         */
+        public BoundedInlineMenuMessageRegistryBuilder maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of messages held for a single chat.
+         *
+         * @param maxPerChat The maximum number of messages, or 0 for no limit
+         *
+         * @return This instance
+         */
+        public BoundedInlineMenuMessageRegistryBuilder maxPerChat(int maxPerChat) {
+            this.maxPerChat = maxPerChat;
+            return this;
+        }
+
+        /**
+         * Sets how long a message can go unused before it is evicted.
+         *
+         * @param duration The duration, or 0 for no limit
+         * @param unit The unit of the duration
+         *
+         * @return This instance
+         */
+        public BoundedInlineMenuMessageRegistryBuilder maxIdle(long duration, TimeUnit unit) {
+            this.maxIdleNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets the listener called whenever a message is evicted.
+         *
+         * For example, {@code (m, cause) -> m.removeKeyboard()} will strip the
+         * buttons from messages that can no longer be used.
+         *
+         * @param evictionListener The listener
+         *
+         * @return This instance
+         */
+        public BoundedInlineMenuMessageRegistryBuilder onEviction(BiConsumer<InlineMenuMessage, EvictionCause> evictionListener) {
+            this.evictionListener = evictionListener;
+            return this;
+        }
+
+        /**
+         * Builds a new registry from this builder.
+         *
+         * @return The registry
+         */
+        public BoundedInlineMenuMessageRegistry build() {
+            return new BoundedInlineMenuMessageRegistry(maxSize, maxPerChat, maxIdleNanos, evictionListener);
+        }
+
+    }
+
+}
@@ -32,7 +32,21 @@ public class InlineMenu {
     private final List<InlineMenuRow> rows;
 
     public InlineMenu(Supplier<String> text, ParseMode parseMode, boolean disableWebPreview, List<InlineMenuRow> rows) {
-        this.id = consecutiveId.next();
+        this(null, text, parseMode, disableWebPreview, rows);
+    }
+
+    /**
+     * Creates a menu that replaces an earlier menu, keeping its ID so that
+     * messages and callbacks for the earlier menu still recognise it.
+     *
+     * @param id The earlier menu's ID, or null for a new ID
+     * @param text The text supplier
+     * @param parseMode The parse mode of the text
+     * @param disableWebPreview Whether or not to display a web preview
+     * @param rows The rows of buttons
+     */
+    public InlineMenu(String id, Supplier<String> text, ParseMode parseMode, boolean disableWebPreview, List<InlineMenuRow> rows) {
+        this.id = id != null ? id : consecutiveId.next();
         this.text = text;
         this.parseMode = parseMode;
         this.disableWebPreview = disableWebPreview;
@@ -64,6 +78,7 @@ public class InlineMenu {
 
     public static class InlineMenuBuilder {
 
+        private String id;
         private Supplier<String> text;
         private ParseMode parseMode = ParseMode.NONE;
         private boolean disableWebPreview = false;
@@ -84,6 +99,20 @@ public class InlineMenu {
             return this;
         }
 
+        /**
+         * Sets the ID of the menu, to rebuild a menu that was thrown away
+         * without it being seen as a different menu.
+         *
+         * @param id The ID of the menu being rebuilt, from {@link InlineMenu#getId()},
+         *           or null for a new ID
+         *
+         * @return This instance
+         */
+        public InlineMenuBuilder id(String id) {
+            this.id = id;
+            return this;
+        }
+
         /**
          * Sets a supplier for the text shown on the message by this menu.
          *
@@ -140,7 +169,7 @@ public class InlineMenu {
          * @return The new menu
          */
         public InlineMenu build() {
-            return new InlineMenu(text, parseMode, disableWebPreview, rows);
+            return new InlineMenu(id, text, parseMode, disableWebPreview, rows);
         }
 
     }
@@ -0,0 +1,153 @@
+package xyz.nickr.telepad.menu;
+
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Encodes and decodes the callback data attached to inline menu buttons.
+ *
+ * Callback data looks like {@code TP|<message>|<menu>|<button>}, where the
+ * button is either {@code <} for the back button, or two characters giving
+ * the row and column. Rows or columns past 61 are written as
+ * {@code <row>.<column>} in base 36 instead.
+ *
+ * Telegram only allows 64 bytes of callback data, so this is kept as short
+ * as possible. Data in the older {@code TPDMenu[} format is not understood,
+ * as the menus it referred to did not outlive the bot that sent them.
+ *
+ * @author Nick Robson
+ */
+@Getter
+public final class InlineMenuCallback {
+
+    /**
+     * The prefix of callback data created using this package.
+     */
+    public static final String PREFIX = "TP|";
+
+    private static final char SEPARATOR = '|';
+    private static final char BACK = '<';
+    private static final char WIDE = '.';
+
+    private static final char[] DIGITS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+    private static final byte[] DIGIT_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGIT_VALUES[DIGITS[i]] = (byte) i;
+        }
+    }
+
+    private final String messageId;
+    private final String menuId;
+    private final int row;
+    private final int column;
+
+    private InlineMenuCallback(String messageId, String menuId, int row, int column) {
+        this.messageId = messageId;
+        this.menuId = menuId;
+        this.row = row;
+        this.column = column;
+    }
+
+    /**
+     * Checks whether this is the data for a back button.
+     *
+     * @return True iff this is for a back button
+     */
+    public boolean isBack() {
+        return row < 0;
+    }
+
+    /**
+     * Creates the callback data for a button.
+     *
+     * @param messageId The ID of the {@link InlineMenuMessage}
+     * @param menuId The ID of the {@link InlineMenu}
+     * @param row The row of the button
+     * @param column The column of the button within its row
+     *
+     * @return The callback data
+     */
+    public static String encode(String messageId, String menuId, int row, int column) {
+        StringBuilder sb = start(messageId, menuId, 4);
+        if (row < DIGITS.length && column < DIGITS.length) {
+            sb.append(DIGITS[row]).append(DIGITS[column]);
+        } else {
+            sb.append(Integer.toString(row, Character.MAX_RADIX)).append(WIDE).append(Integer.toString(column, Character.MAX_RADIX));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the callback data for a back button.
+     *
+     * @param messageId The ID of the {@link InlineMenuMessage}
+     * @param menuId The ID of the {@link InlineMenu}
+     *
+     * @return The callback data
+     */
+    public static String encodeBack(String messageId, String menuId) {
+        return start(messageId, menuId, 1).append(BACK).toString();
+    }
+
+    private static StringBuilder start(String messageId, String menuId, int extra) {
+        return new StringBuilder(PREFIX.length() + messageId.length() + menuId.length() + 1 + extra)
+                .append(PREFIX).append(messageId).append(SEPARATOR).append(menuId).append(SEPARATOR);
+    }
+
+    /**
+     * Decodes callback data.
+     *
+     * @param data The callback data
+     *
+     * @return The decoded data, or null if it was not created by this package
+     *         or is malformed
+     */
+    public static InlineMenuCallback decode(String data) {
+        if (data == null || !data.startsWith(PREFIX))
+            return null;
+        int start = PREFIX.length();
+        int menuStart = data.indexOf(SEPARATOR, start) + 1;
+        if (menuStart <= start)
+            return null;
+        int buttonStart = data.indexOf(SEPARATOR, menuStart) + 1;
+        if (buttonStart <= menuStart)
+            return null;
+        String messageId = data.substring(start, menuStart - 1);
+        String menuId = data.substring(menuStart, buttonStart - 1);
+        int length = data.length() - buttonStart;
+        if (length == 1 && data.charAt(buttonStart) == BACK)
+            return new InlineMenuCallback(messageId, menuId, -1, -1);
+        int wide = data.indexOf(WIDE, buttonStart);
+        if (wide >= 0) {
+            int row = parseBase36(data, buttonStart, wide);
+            int column = parseBase36(data, wide + 1, data.length());
+            return (row < 0 || column < 0) ? null : new InlineMenuCallback(messageId, menuId, row, column);
+        }
+        if (length != 2)
+            return null;
+        int row = digit(data.charAt(buttonStart));
+        int column = digit(data.charAt(buttonStart + 1));
+        return (row < 0 || column < 0) ? null : new InlineMenuCallback(messageId, menuId, row, column);
+    }
+
+    private static int digit(char c) {
+        return c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : -1;
+    }
+
+    private static int parseBase36(String s, int start, int end) {
+        if (start >= end || end - start > 6)
+            return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int d = Character.digit(s.charAt(i), Character.MAX_RADIX);
+            if (d < 0)
+                return -1;
+            value = value * Character.MAX_RADIX + d;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,176 @@
+package xyz.nickr.telepad.menu;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses bursts of edits to the same inline menu message into a single
+ * edit.
+ *
+ * When an edit is requested, it waits for the debounce window to pass.
+ * Any further edits requested for that message in the meantime replace it,
+ * so only the latest is sent.
+ *
+ * @author Nick Robson
+ */
+public class InlineMenuEditCoalescer {
+
+    private final long windowNanos;
+    private final Map<Object, Edit> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean shutdown;
+
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * Creates a coalescer with a given debounce window.
+     *
+     * @param window The debounce window, or 0 to send every edit immediately
+     * @param unit The unit of the window
+     */
+    public InlineMenuEditCoalescer(long window, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = windowNanos > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "telepad-menu-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Requests an edit of a message.
+     *
+     * If the debounce window is 0, or this coalescer has been shut down, the
+     * edit is run immediately on the calling thread. Otherwise, it is run on
+     * the executor once the window has passed, unless a newer edit for the
+     * same message replaces it first.
+     *
+     * @param key The message being edited
+     * @param edit The edit
+     * @param executor The executor to run the edit on
+     */
+    public void submit(Object key, Runnable edit, Executor executor) {
+        requested.increment();
+        if (scheduler == null || shutdown) {
+            sent.increment();
+            edit.run();
+            return;
+        }
+        if (pending.put(key, new Edit(edit, executor)) != null) {
+            saved.increment();
+            return;
+        }
+        try {
+            scheduler.schedule(() -> send(key), windowNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down since we checked, and the edit may have missed the drain
+            send(key);
+        }
+    }
+
+    private void send(Object key) {
+        Edit latest = pending.remove(key);
+        if (latest == null)
+            return;
+        sent.increment();
+        try {
+            latest.executor.execute(latest.edit);
+        } catch (RejectedExecutionException ex) {
+            latest.edit.run();
+        }
+    }
+
+    /**
+     * Records that an edit was skipped because a newer one had already been
+     * rendered.
+     */
+    public void recordSkipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Gets the debounce window.
+     *
+     * @param unit The unit to return the window in
+     *
+     * @return The window
+     */
+    public long getWindow(TimeUnit unit) {
+        return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the number of edits that have been requested.
+     *
+     * @return The number of edits
+     */
+    public long getRequestedCount() {
+        return requested.sum();
+    }
+
+    /**
+     * Gets the number of edits that were run, including those that were
+     * then skipped.
+     *
+     * @return The number of edits
+     */
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /**
+     * Gets the number of edits that were never sent because a newer edit
+     * replaced them.
+     *
+     * @return The number of edits
+     */
+    public long getSavedCount() {
+        return saved.sum();
+    }
+
+    /**
+     * Gets the number of edits that were run but not sent, because a newer
+     * edit had already been rendered.
+     *
+     * @return The number of edits
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * Stops scheduling edits. Edits still waiting for their window are sent
+     * straight away, and any edits requested from now on are run
+     * immediately.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            for (Object key : pending.keySet())
+                send(key);
+        }
+    }
+
+    private static final class Edit {
+
+        private final Runnable edit;
+        private final Executor executor;
+
+        private Edit(Runnable edit, Executor executor) {
+            this.edit = edit;
+            this.executor = executor;
+        }
+
+    }
+
+}
@@ -0,0 +1,170 @@
+package xyz.nickr.telepad.menu;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import pro.zackpollard.telegrambot.api.keyboards.InlineKeyboardMarkup;
+
+/**
+ * Caches the keyboards built for inline menu messages.
+ *
+ * A keyboard only depends on the menu, the message it is on, whether
+ * there is a menu to go back to, and the {@link InlineMenuMessage.BackButtonType},
+ * so navigating back and forth between the same menus reuses the keyboards
+ * that were already built.
+ *
+ * The message is part of every button's callback data, so keyboards can't
+ * be shared between messages. They are grouped by message instead, and
+ * dropped as soon as the message is removed from the registry.
+ *
+ * @author Nick Robson
+ */
+public class InlineMenuMarkupCache {
+
+    private final int maxSize;
+    // access-ordered by message, so the eldest entry is the least recently used message
+    private final LinkedHashMap<String, Map<Key, InlineKeyboardMarkup>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private int size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache holding at most a given number of keyboards, evicting
+     * those of the least recently used messages once full.
+     *
+     * @param maxSize The maximum number of keyboards
+     */
+    public InlineMenuMarkupCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets a cached keyboard, building and caching it if there is none.
+     *
+     * @param messageId The ID of the message
+     * @param menuId The ID of the menu
+     * @param canGoBack Whether there is a menu to go back to
+     * @param backButtonType The back button type
+     * @param builder Builds the keyboard if it is not cached
+     *
+     * @return The keyboard
+     */
+    public InlineKeyboardMarkup get(String messageId, String menuId, boolean canGoBack, InlineMenuMessage.BackButtonType backButtonType, Supplier<InlineKeyboardMarkup> builder) {
+        Key key = new Key(menuId, canGoBack, backButtonType);
+        InlineKeyboardMarkup markup;
+        synchronized (this) {
+            Map<Key, InlineKeyboardMarkup> keyboards = cache.get(messageId);
+            markup = keyboards != null ? keyboards.get(key) : null;
+        }
+        if (markup != null) {
+            hits.increment();
+            return markup;
+        }
+        misses.increment();
+        markup = builder.get();
+        synchronized (this) {
+            if (cache.computeIfAbsent(messageId, k -> new HashMap<>(4)).put(key, markup) == null)
+                size++;
+            Iterator<Map<Key, InlineKeyboardMarkup>> it = cache.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().size();
+                it.remove();
+            }
+        }
+        return markup;
+    }
+
+    /**
+     * Removes the keyboards built for a message, such as when it can no
+     * longer receive callbacks.
+     *
+     * @param messageId The ID of the message
+     */
+    public synchronized void invalidate(String messageId) {
+        Map<Key, InlineKeyboardMarkup> keyboards = cache.remove(messageId);
+        if (keyboards != null)
+            size -= keyboards.size();
+    }
+
+    /**
+     * Removes all keyboards from the cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the number of keyboards currently cached.
+     *
+     * @return The number of keyboards
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of lookups that found a cached keyboard.
+     *
+     * @return The number of lookups
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to build a keyboard.
+     *
+     * @return The number of lookups
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the fraction of lookups that found a cached keyboard.
+     *
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = getHitCount(), total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static final class Key {
+
+        private final String menuId;
+        private final boolean canGoBack;
+        private final InlineMenuMessage.BackButtonType backButtonType;
+
+        private Key(String menuId, boolean canGoBack, InlineMenuMessage.BackButtonType backButtonType) {
+            this.menuId = menuId;
+            this.canGoBack = canGoBack;
+            this.backButtonType = backButtonType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return canGoBack == key.canGoBack
+                    && backButtonType == key.backButtonType
+                    && menuId.equals(key.menuId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(menuId, canGoBack, backButtonType);
+        }
+
+    }
+
+}
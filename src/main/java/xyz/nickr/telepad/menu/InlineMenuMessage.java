@@ -1,11 +1,14 @@
 package xyz.nickr.telepad.menu;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.Stack;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
@@ -16,6 +19,11 @@ import pro.zackpollard.telegrambot.api.chat.message.content.ContentType;
 import pro.zackpollard.telegrambot.api.keyboards.InlineKeyboardButton;
 import pro.zackpollard.telegrambot.api.keyboards.InlineKeyboardMarkup;
 import pro.zackpollard.telegrambot.api.user.User;
+import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.outbound.OutboundScheduler;
+import xyz.nickr.telepad.outbound.Priority;
+import xyz.nickr.telepad.trace.Trace;
+import xyz.nickr.telepad.util.AsyncExecutor;
 import xyz.nickr.telepad.util.ConsecutiveId;
 
 /**
@@ -71,17 +79,54 @@ public class InlineMenuMessage {
     }
 
     /**
-     * The callback prefix for menus created using this package.
+     * The callback prefix used by older versions of this package, which is
+     * no longer understood.
+     *
+     * @see InlineMenuCallback
      */
     public static final String CALLBACK_UNIQUE = "TPDMenu";
 
     /**
      * The radix used to compress integers into smaller strings than using decimal.
+     *
+     * @see InlineMenuCallback
      */
     public static final int RADIX = 36;
 
     private static final ConsecutiveId consecutiveId = ConsecutiveId.reserve("Telepad::InlineMenu::InlineMenuMessage");
-    private static final Map<String, InlineMenuMessage> messages = new HashMap<>();
+    private static volatile InlineMenuMessageRegistry registry = BoundedInlineMenuMessageRegistry.builder().build();
+    private static final InlineMenuMarkupCache markupCache = new InlineMenuMarkupCache(10000);
+
+    /**
+     * Gets the cache of keyboards built for menu messages.
+     *
+     * @return The cache
+     */
+    public static InlineMenuMarkupCache getMarkupCache() {
+        return markupCache;
+    }
+
+    /**
+     * Gets the registry used to look up messages when handling callbacks.
+     *
+     * @return The registry
+     */
+    public static InlineMenuMessageRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets the registry used to look up messages when handling callbacks.
+     *
+     * Messages already registered with the previous registry will no
+     * longer receive callbacks, so their cached keyboards are dropped.
+     *
+     * @param registry The registry
+     */
+    public static void setRegistry(InlineMenuMessageRegistry registry) {
+        InlineMenuMessage.registry = Objects.requireNonNull(registry, "registry cannot be null");
+        markupCache.clear();
+    }
 
     /**
      * Gets the message sent by this API with the given ID and menu ID.
@@ -92,28 +137,35 @@ public class InlineMenuMessage {
      * @return The message, or null if either ID does not match
      */
     public static InlineMenuMessage getMessage(String id, String menuId) {
-        InlineMenuMessage message = messages.get(id);
-        if (message != null && Objects.equals(id, message.getId()) && !message.getMenuStack().isEmpty() && Objects.equals(menuId, message.getMenu().getId()))
-            return message;
-        return null;
+        InlineMenuMessage message = registry.get(id);
+        if (message == null || !Objects.equals(id, message.getId()))
+            return null;
+        InlineMenu menu = message.getMenu();
+        return (menu != null && Objects.equals(menuId, menu.getId())) ? message : null;
     }
 
     private final String id;
-    private Message message;
-    private Predicate<User> userPredicate;
+    private volatile Message message;
+    private volatile Predicate<User> userPredicate;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicReference<MenuState> state = new AtomicReference<>(MenuState.EMPTY);
 
-    @Getter(AccessLevel.PRIVATE)
-    private final Stack<InlineMenu> menuStack = new Stack<>();
+    @Getter(AccessLevel.NONE)
+    private final Object renderLock = new Object();
 
-    @Setter @NonNull private BackButtonType backButtonType = BackButtonType.NONE;
+    @Getter(AccessLevel.NONE)
+    private long renderedVersion;
+
+    @Setter @NonNull private volatile BackButtonType backButtonType = BackButtonType.NONE;
 
     public InlineMenuMessage(Message message, InlineMenu menu) {
         this.id = consecutiveId.next();
         this.message = message;
         if (menu != null)
-            this.menuStack.add(menu);
+            this.state.set(MenuState.EMPTY.push(menu));
 
-        InlineMenuMessage.messages.put(id, this);
+        InlineMenuMessage.registry.register(this);
 
         if (menu != null)
             updateMessage();
@@ -125,7 +177,7 @@ public class InlineMenuMessage {
      * @return The menu, or null if there is no menu
      */
     public InlineMenu getMenu() {
-        return menuStack.isEmpty() ? null : menuStack.peek();
+        return state.get().menu;
     }
 
     /**
@@ -136,10 +188,13 @@ public class InlineMenuMessage {
      * @return This instance
      */
     public InlineMenuMessage setMenu(InlineMenu menu) {
-        if (menuStack.isEmpty() || !Objects.equals(menuStack.peek(), menu)) {
-            this.menuStack.push(menu);
-            updateMessage();
-        }
+        MenuState current;
+        do {
+            current = state.get();
+            if (current.depth > 0 && Objects.equals(current.menu, menu))
+                return this;
+        } while (!state.compareAndSet(current, current.push(menu)));
+        updateMessage();
         return this;
     }
 
@@ -151,7 +206,7 @@ public class InlineMenuMessage {
      * @return This instance
      */
     public InlineMenuMessage setMenuAsync(InlineMenu menu) {
-        new Thread(() -> setMenu(menu)).start();
+        runAsync(() -> setMenu(menu));
         return this;
     }
 
@@ -175,76 +230,212 @@ public class InlineMenuMessage {
      * @return This instance
      */
     public InlineMenuMessage back(boolean async) {
-        if (menuStack.size() > 1) {
-            menuStack.pop();
-            if (async) {
-                new Thread(this::updateMessage).start();
+        MenuState current;
+        do {
+            current = state.get();
+            if (current.depth <= 1)
+                throw new IllegalStateException("I can't go back, I'm already at my root!");
+        } while (!state.compareAndSet(current, current.pop()));
+        if (async) {
+            runAsync(this::updateMessage);
+        } else {
+            updateMessage();
+        }
+        return this;
+    }
+
+    /**
+     * Removes the inline keyboard from this message, and stops it from
+     * receiving any more callbacks.
+     *
+     * @return This instance
+     */
+    public InlineMenuMessage removeKeyboard() {
+        InlineMenuMessage.registry.remove(id);
+        markupCache.invalidate(id);
+        synchronized (renderLock) {
+            this.renderedVersion = Long.MAX_VALUE;
+        }
+        // submitted after any edits still to be sent for this chat, so none of them can put the keyboard back
+        Message message = this.message;
+        try {
+            this.message = OutboundScheduler.submit(message.getBotInstance(), message.getChat().getId(), Priority.BULK,
+                    () -> message.getBotInstance().editMessageReplyMarkup(message, null)).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+        return this;
+    }
+
+    private void runAsync(Runnable task) {
+        TelepadBot bot = TelepadBot.from(this.message.getBotInstance());
+        Executor executor = bot != null ? bot.getMenuExecutor() : ForkJoinPool.commonPool();
+        Runnable traced = Trace.wrap(task);
+        try {
+            executor.execute(traced);
+        } catch (RejectedExecutionException ex) {
+            if (executor instanceof AsyncExecutor && ((AsyncExecutor) executor).isShutdown()) {
+                // the bot's executor was swapped and shut down after we fetched it
+                traced.run();
             } else {
-                updateMessage();
+                // full, and its policy is to reject, so don't run it here anyway; the executor counts it
+                System.err.println("Dropped inline menu update: " + ex.getMessage());
             }
-            return this;
-        } else {
-            throw new IllegalStateException("I can't go back, I'm already at my root!");
         }
     }
 
+    /**
+     * Requests that the latest menu state be rendered onto the message.
+     *
+     * If the bot has an edit debounce window, rapid requests are collapsed
+     * into a single edit.
+     */
     private void updateMessage() {
-        InlineMenu menu = menuStack.peek();
-        if (menu == null || menu.getText() == null || this.message.getContent().getType() != ContentType.TEXT) {
-            this.message = this.message.getBotInstance().editMessageReplyMarkup(this.message, this.getMarkup());
-        } else {
-            this.message = this.message.getBotInstance().editMessageText(this.message, menu.getText().get(), menu.getParseMode(), menu.isDisableWebPreview(), this.getMarkup());
+        int span = Trace.begin("menu.update");
+        try {
+            TelepadBot bot = TelepadBot.from(this.message.getBotInstance());
+            if (bot == null) {
+                render(null);
+                return;
+            }
+            InlineMenuEditCoalescer coalescer = bot.getMenuEditCoalescer();
+            coalescer.submit(this, Trace.wrap(() -> render(coalescer)), bot.getMenuExecutor());
+        } finally {
+            Trace.end(span);
+        }
+    }
+
+    /**
+     * Renders the latest menu state onto the message.
+     *
+     * Edits to the same message are submitted one at a time, and an edit
+     * is skipped entirely if a newer state has already been rendered by
+     * another thread. The edit is sent by the bot's outbound scheduler,
+     * which sends a chat's edits in order, so this doesn't wait for it.
+     *
+     * @param coalescer The coalescer to report skipped edits to, or null
+     */
+    private void render(InlineMenuEditCoalescer coalescer) {
+        int span = Trace.begin("menu.render");
+        try {
+            synchronized (renderLock) {
+                MenuState current = state.get();
+                if (current.version <= renderedVersion) {
+                    if (coalescer != null)
+                        coalescer.recordSkipped();
+                    return;
+                }
+                InlineMenu menu = current.menu;
+                Message message = this.message;
+                InlineKeyboardMarkup markup = this.getMarkup(current);
+                Supplier<Message> edit;
+                if (menu == null || menu.getText() == null || message.getContent().getType() != ContentType.TEXT) {
+                    edit = () -> message.getBotInstance().editMessageReplyMarkup(message, markup);
+                } else {
+                    String text = menu.getText().get();
+                    edit = () -> message.getBotInstance().editMessageText(message, text, menu.getParseMode(), menu.isDisableWebPreview(), markup);
+                }
+                this.renderedVersion = current.version;
+                OutboundScheduler.submit(message.getBotInstance(), message.getChat().getId(), Priority.NORMAL, edit).whenComplete((edited, ex) -> {
+                    if (ex != null) {
+                        ex.printStackTrace();
+                    } else if (edited != null) {
+                        this.message = edited;
+                    }
+                });
+            }
+        } finally {
+            Trace.end(span);
         }
     }
 
-    private InlineKeyboardMarkup getMarkup() {
-        if (this.menuStack.isEmpty())
+    private InlineKeyboardMarkup getMarkup(MenuState state) {
+        if (state.depth == 0)
             return null;
-        InlineMenu menu = menuStack.peek();
+        boolean canGoBack = state.depth > 1;
+        BackButtonType backButtonType = canGoBack ? this.backButtonType : BackButtonType.NONE;
+        return markupCache.get(id, state.menu.getId(), canGoBack, backButtonType, () -> buildMarkup(state.menu, canGoBack, backButtonType));
+    }
+
+    private InlineKeyboardMarkup buildMarkup(InlineMenu menu, boolean canGoBack, BackButtonType backButtonType) {
         InlineKeyboardMarkup.InlineKeyboardMarkupBuilder builder = InlineKeyboardMarkup.builder();
-        int extraFirst = this.menuStack.size() > 1 && (this.backButtonType == BackButtonType.PREPEND_TO_FIRST_ROW || this.backButtonType == BackButtonType.APPEND_TO_FIRST_ROW) ? 1 : 0;
-        int extraLast = this.menuStack.size() > 1 && (this.backButtonType == BackButtonType.PREPEND_TO_LAST_ROW || this.backButtonType == BackButtonType.APPEND_TO_LAST_ROW) ? 1 : 0;
+        int extraFirst = canGoBack && (backButtonType == BackButtonType.PREPEND_TO_FIRST_ROW || backButtonType == BackButtonType.APPEND_TO_FIRST_ROW) ? 1 : 0;
+        int extraLast = canGoBack && (backButtonType == BackButtonType.PREPEND_TO_LAST_ROW || backButtonType == BackButtonType.APPEND_TO_LAST_ROW) ? 1 : 0;
 
-        if (this.menuStack.size() > 1 && this.backButtonType == BackButtonType.NEW_FIRST_ROW) {
-            builder.addRow(getBackButton());
+        if (canGoBack && backButtonType == BackButtonType.NEW_FIRST_ROW) {
+            builder.addRow(getBackButton(menu));
         }
 
         int i = 0, max = menu.getRows().size();
         for (InlineMenuRow row : menu.getRows()) {
-            String ROW_IDENT = Integer.toString(i, RADIX);
             List<InlineMenuButton> buttonList = row.getButtons();
             InlineKeyboardButton[] buttons = new InlineKeyboardButton[buttonList.size() + (i == 0 ? extraFirst : 0) + (i + 1 == max ? extraLast : 0)];
             int j = 0;
-            if (this.menuStack.size() > 1 && ((i == 0 && backButtonType == BackButtonType.PREPEND_TO_FIRST_ROW) || (i + 1 == max && backButtonType == BackButtonType.PREPEND_TO_LAST_ROW))) {
-                buttons[j] = getBackButton();
+            if (canGoBack && ((i == 0 && backButtonType == BackButtonType.PREPEND_TO_FIRST_ROW) || (i + 1 == max && backButtonType == BackButtonType.PREPEND_TO_LAST_ROW))) {
+                buttons[j] = getBackButton(menu);
                 j++;
             }
+            int col = 0;
             for (InlineMenuButton button : buttonList) {
-                String COL_IDENT = Integer.toString(j, RADIX);
                 buttons[j] = InlineKeyboardButton.builder()
                         .text(button.getText())
-                        .callbackData(CALLBACK_UNIQUE + "[" + id + "[" + menu.getId() + "[" + ROW_IDENT + "[" + COL_IDENT)
+                        .callbackData(InlineMenuCallback.encode(id, menu.getId(), i, col))
                         .build();
                 j++;
+                col++;
             }
-            if (this.menuStack.size() > 1 && ((i == 0 && backButtonType == BackButtonType.APPEND_TO_FIRST_ROW) || (i + 1 == max && backButtonType == BackButtonType.APPEND_TO_LAST_ROW))) {
-                buttons[j] = getBackButton();
+            if (canGoBack && ((i == 0 && backButtonType == BackButtonType.APPEND_TO_FIRST_ROW) || (i + 1 == max && backButtonType == BackButtonType.APPEND_TO_LAST_ROW))) {
+                buttons[j] = getBackButton(menu);
             }
             builder.addRow(buttons);
             ++i;
         }
-        if (this.menuStack.size() > 1 && this.backButtonType == BackButtonType.NEW_LAST_ROW) {
-            builder.addRow(getBackButton());
+        if (canGoBack && backButtonType == BackButtonType.NEW_LAST_ROW) {
+            builder.addRow(getBackButton(menu));
         }
         return builder.build();
     }
 
-    private InlineKeyboardButton getBackButton() {
-        InlineMenu menu = menuStack.peek();
+    private InlineKeyboardButton getBackButton(InlineMenu menu) {
         return InlineKeyboardButton.builder()
                 .text("← Back")
-                .callbackData(CALLBACK_UNIQUE + "[" + id + "[" + menu.getId() + "[[BACK")
+                .callbackData(InlineMenuCallback.encodeBack(id, menu.getId()))
                 .build();
     }
 
+    /**
+     * An immutable snapshot of the menu stack.
+     *
+     * Every change produces a new snapshot with a higher version, so that
+     * updates can be applied with a compare-and-set and renders can tell
+     * whether they are stale.
+     */
+    private static final class MenuState {
+
+        private static final MenuState EMPTY = new MenuState(null, null, 0, 0);
+
+        private final InlineMenu menu;
+        private final MenuState parent;
+        private final int depth;
+        private final long version;
+
+        private MenuState(InlineMenu menu, MenuState parent, int depth, long version) {
+            this.menu = menu;
+            this.parent = parent;
+            this.depth = depth;
+            this.version = version;
+        }
+
+        private MenuState push(InlineMenu menu) {
+            return new MenuState(menu, this, depth + 1, version + 1);
+        }
+
+        private MenuState pop() {
+            return new MenuState(parent.menu, parent.parent, depth - 1, version + 1);
+        }
+
+    }
+
 }
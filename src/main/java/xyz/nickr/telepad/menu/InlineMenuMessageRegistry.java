@@ -0,0 +1,46 @@
+package xyz.nickr.telepad.menu;
+
+/**
+ * Keeps track of the {@link InlineMenuMessage}s that can still receive
+ * callbacks.
+ *
+ * Implementations must be safe to use from multiple threads, as callbacks
+ * are handled concurrently.
+ *
+ * @author Nick Robson
+ */
+public interface InlineMenuMessageRegistry {
+
+    /**
+     * Registers a message so that its callbacks can be resolved.
+     *
+     * @param message The message
+     */
+    void register(InlineMenuMessage message);
+
+    /**
+     * Gets a registered message by its ID.
+     *
+     * @param id The message ID
+     *
+     * @return The message, or null if it is not (or no longer) registered
+     */
+    InlineMenuMessage get(String id);
+
+    /**
+     * Removes a message from this registry.
+     *
+     * @param id The message ID
+     *
+     * @return The removed message, or null if it was not registered
+     */
+    InlineMenuMessage remove(String id);
+
+    /**
+     * Gets the number of messages currently registered.
+     *
+     * @return The number of messages
+     */
+    int size();
+
+}
@@ -0,0 +1,128 @@
+package xyz.nickr.telepad.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsSink} that keeps counts and timing histograms in memory,
+ * to be read back or dumped on demand.
+ *
+ * @author Nick Robson
+ */
+public class InMemoryMetricsSink implements MetricsSink {
+
+    private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Histogram>> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void increment(String metric, String key) {
+        Map<String, LongAdder> byKey = counters.get(metric);
+        if (byKey == null)
+            byKey = counters.computeIfAbsent(metric, k -> new ConcurrentHashMap<>());
+        LongAdder counter = byKey.get(key);
+        if (counter == null)
+            counter = byKey.computeIfAbsent(key, k -> new LongAdder());
+        counter.increment();
+    }
+
+    @Override
+    public void record(String metric, String key, long nanos) {
+        Map<String, Histogram> byKey = histograms.get(metric);
+        if (byKey == null)
+            byKey = histograms.computeIfAbsent(metric, k -> new ConcurrentHashMap<>());
+        Histogram histogram = byKey.get(key);
+        if (histogram == null)
+            histogram = byKey.computeIfAbsent(key, k -> new Histogram());
+        histogram.record(nanos);
+    }
+
+    /**
+     * Gets a count.
+     *
+     * @param metric The metric
+     * @param key What was counted
+     *
+     * @return The count
+     */
+    public long getCount(String metric, String key) {
+        Map<String, LongAdder> byKey = counters.get(metric);
+        LongAdder counter = byKey != null ? byKey.get(key) : null;
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Gets a histogram of timings, in nanoseconds.
+     *
+     * @param metric The metric
+     * @param key What was timed
+     *
+     * @return The histogram, or null if nothing was timed
+     */
+    public Histogram getHistogram(String metric, String key) {
+        Map<String, Histogram> byKey = histograms.get(metric);
+        return byKey != null ? byKey.get(key) : null;
+    }
+
+    /**
+     * Gets every count, by metric and then by key.
+     *
+     * @return A copy of the counts, in alphabetical order
+     */
+    public Map<String, Map<String, Long>> getCounts() {
+        Map<String, Map<String, Long>> counts = new TreeMap<>();
+        counters.forEach((metric, byKey) -> {
+            Map<String, Long> values = new TreeMap<>();
+            byKey.forEach((key, counter) -> values.put(key, counter.sum()));
+            counts.put(metric, Collections.unmodifiableMap(values));
+        });
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Gets every histogram of timings, in nanoseconds, by metric and then by key.
+     *
+     * @return The histograms, in alphabetical order
+     */
+    public Map<String, Map<String, Histogram>> getHistograms() {
+        Map<String, Map<String, Histogram>> copy = new TreeMap<>();
+        histograms.forEach((metric, byKey) -> copy.put(metric, Collections.unmodifiableMap(new TreeMap<>(byKey))));
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Forgets every count and timing.
+     */
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Writes every count and timing as text, one per line, with timings
+     * in milliseconds.
+     *
+     * @return The text
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        getCounts().forEach((metric, byKey) -> byKey.forEach((key, count) ->
+                sb.append(metric).append('{').append(key).append("} ").append(count).append('\n')));
+        getHistograms().forEach((metric, byKey) -> byKey.forEach((key, histogram) ->
+                sb.append(metric).append('{').append(key).append("} ")
+                        .append(String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                                histogram.getCount(), histogram.getMean() / TimeUnit.MILLISECONDS.toNanos(1),
+                                millis(histogram.getPercentile(50)), millis(histogram.getPercentile(90)),
+                                millis(histogram.getPercentile(99)), millis(histogram.getMax())))
+                        .append('\n')));
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,97 @@
+package xyz.nickr.telepad.metrics;
+
+/**
+ * The names of the metrics Telepad records.
+ *
+ * @author Nick Robson
+ */
+public final class Metrics {
+
+    /**
+     * Commands executed, by command name.
+     */
+    public static final String COMMAND_INVOCATIONS = "command.invocations";
+
+    /**
+     * Commands that threw an exception, by command name.
+     */
+    public static final String COMMAND_ERRORS = "command.errors";
+
+    /**
+     * Commands not executed because the user lacked permission, by command name.
+     */
+    public static final String COMMAND_DENIED = "command.denied";
+
+    /**
+     * Commands sent that aren't registered, under an empty key, as the
+     * names sent could be anything.
+     */
+    public static final String COMMAND_UNKNOWN = "command.unknown";
+
+    /**
+     * Time spent executing commands, by command name.
+     */
+    public static final String COMMAND_LATENCY = "command.latency";
+
+    /**
+     * Time spent checking permission to execute commands, by command name.
+     */
+    public static final String PERMISSION_LATENCY = "command.permission.latency";
+
+    /**
+     * Updates received, by the kind of update: {@code command}, {@code message},
+     * {@code message_callback}, {@code inline_callback} or {@code inline_query}.
+     */
+    public static final String LISTENER_UPDATES = "listener.updates";
+
+    /**
+     * Updates that couldn't be queued to be handled, by the kind of update:
+     * {@code command}, or {@code callback} for inline menu button presses.
+     */
+    public static final String LISTENER_REJECTED = "listener.rejected";
+
+    /**
+     * Commands the dispatcher couldn't queue, by where the queue was full:
+     * {@code total} for every chat or {@code chat} for the sender's chat.
+     */
+    public static final String DISPATCHER_REJECTED = "dispatcher.rejected";
+
+    /**
+     * Commands interrupted for missing the dispatcher's deadline, by command
+     * name, or under an empty key if the command isn't registered.
+     */
+    public static final String DISPATCHER_TIMED_OUT = "dispatcher.timed_out";
+
+    /**
+     * Script invocations that were never run, by command name: because no
+     * slot freed up in time, the script was overrunning, or it already had
+     * as many invocations in flight as it is allowed.
+     */
+    public static final String SCRIPT_REJECTED = "script.rejected";
+
+    /**
+     * Script invocations interrupted for missing their deadline, by command name.
+     */
+    public static final String SCRIPT_TIMED_OUT = "script.timed_out";
+
+    /**
+     * Script invocations that were given up on while still running and
+     * went on to run past their deadline, by command name.
+     */
+    public static final String SCRIPT_OVERRUNS = "script.overruns";
+
+    /**
+     * Time from receiving inline menu button presses to having handled them,
+     * by the kind of button:
+     * {@code button}, {@code back}, or {@code unknown} for unrecognised callbacks.
+     */
+    public static final String CALLBACK_LATENCY = "listener.callback.latency";
+
+    /**
+     * Inline menu button presses whose handler threw an exception, by the kind of button.
+     */
+    public static final String CALLBACK_ERRORS = "listener.callback.errors";
+
+    private Metrics() {}
+
+}
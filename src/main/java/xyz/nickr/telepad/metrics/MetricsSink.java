@@ -0,0 +1,43 @@
+package xyz.nickr.telepad.metrics;
+
+/**
+ * Receives the counts and timings Telepad records about itself, such as
+ * how often each command is used and how long it takes.
+ *
+ * Each metric is named by one of the constants in {@link Metrics}, and is
+ * broken down by a key, such as the name of a command. Implementations
+ * must be safe to use from multiple threads, and should be cheap, as they
+ * are called on every update.
+ *
+ * @author Nick Robson
+ */
+public interface MetricsSink {
+
+    /**
+     * Gets whether this sink records anything. When it doesn't, Telepad
+     * skips reading the clock for timings it would have given to it.
+     *
+     * @return True iff metrics are recorded
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Counts one occurrence of something.
+     *
+     * @param metric The metric
+     * @param key What it happened to
+     */
+    void increment(String metric, String key);
+
+    /**
+     * Records how long something took.
+     *
+     * @param metric The metric
+     * @param key What it happened to
+     * @param nanos The time it took, in nanoseconds
+     */
+    void record(String metric, String key, long nanos);
+
+}
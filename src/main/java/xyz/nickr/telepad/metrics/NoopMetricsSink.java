@@ -0,0 +1,25 @@
+package xyz.nickr.telepad.metrics;
+
+/**
+ * A {@link MetricsSink} that records nothing, for turning metrics off.
+ *
+ * @author Nick Robson
+ */
+public final class NoopMetricsSink implements MetricsSink {
+
+    public static final NoopMetricsSink INSTANCE = new NoopMetricsSink();
+
+    private NoopMetricsSink() {}
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void increment(String metric, String key) {}
+
+    @Override
+    public void record(String metric, String key, long nanos) {}
+
+}
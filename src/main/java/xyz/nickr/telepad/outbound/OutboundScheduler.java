@@ -0,0 +1,334 @@
+package xyz.nickr.telepad.outbound;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import pro.zackpollard.telegrambot.api.TelegramBot;
+import xyz.nickr.telepad.TelepadBot;
+import xyz.nickr.telepad.trace.Trace;
+import xyz.nickr.telepad.util.AsyncExecutor;
+
+/**
+ * Paces all requests the bot sends to Telegram, so that it stays within
+ * Telegram's global and per-chat flood limits.
+ *
+ * Requests made with {@link #call(String, Priority, Supplier)} are made on
+ * the calling thread once both the global and the chat's token bucket
+ * allow it, with waiting requests sent in order of {@link Priority}.
+ *
+ * Requests made with {@link #submit(String, Priority, Supplier)} are made
+ * on the scheduler's own threads instead, so the caller never waits. Each
+ * chat's requests are sent one at a time, in order of priority and then
+ * of submission, so a chat that is being throttled only holds one thread.
+ * This is what should be used from the threads that handle updates.
+ *
+ * Each request is a span in the trace of the update that made it, if
+ * there is one, and so is any time spent waiting for a rate limit.
+ *
+ * @author Nick Robson
+ */
+public class OutboundScheduler {
+
+    private static final int MAX_IDLE_CHATS = 1000;
+    private static final int SWEEP_INTERVAL = 256;
+    private static final int BATCH_SIZE = 16;
+
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> chats = new ConcurrentHashMap<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final int chatCapacity;
+    private final double chatPerSecond;
+    private final AsyncExecutor executor;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * Creates a scheduler using Telegram's documented limits: about 30
+     * messages per second overall, and about 1 per second in each chat.
+     */
+    public OutboundScheduler() {
+        this(30, 30, 3, 1, 16);
+    }
+
+    /**
+     * Creates a scheduler with custom limits.
+     *
+     * @param globalCapacity The burst size across all chats
+     * @param globalPerSecond The sustained rate across all chats
+     * @param chatCapacity The burst size in a single chat
+     * @param chatPerSecond The sustained rate in a single chat
+     * @param threads The number of threads making submitted requests, and
+     *                so the most chats that can be sent to at once
+     */
+    public OutboundScheduler(int globalCapacity, double globalPerSecond, int chatCapacity, double chatPerSecond, int threads) {
+        this.global = new TokenBucket(globalCapacity, globalPerSecond);
+        this.chatCapacity = chatCapacity;
+        this.chatPerSecond = chatPerSecond;
+        this.executor = AsyncExecutor.builder().name("telepad-outbound").threads(threads).queueCapacity(0).build();
+    }
+
+    /**
+     * Makes a request through the scheduler of the Telepad bot wrapping
+     * a {@link TelegramBot}, or directly if there is none.
+     *
+     * @param handle The telegram bot instance
+     * @param chatId The chat the request is for, or null if it is not for a chat
+     * @param priority The priority
+     * @param request The request
+     * @param <T> The request's return type
+     *
+     * @return The result of the request
+     */
+    public static <T> T call(TelegramBot handle, String chatId, Priority priority, Supplier<T> request) {
+        TelepadBot bot = TelepadBot.from(handle);
+        return bot != null ? bot.getOutboundScheduler().call(chatId, priority, request) : request.get();
+    }
+
+    /**
+     * Submits a request to the scheduler of the Telepad bot wrapping a
+     * {@link TelegramBot}, or makes it directly if there is none.
+     *
+     * @param handle The telegram bot instance
+     * @param chatId The chat the request is for, or null if it is not for a chat
+     * @param priority The priority
+     * @param request The request
+     * @param <T> The request's return type
+     *
+     * @return The result of the request, once it has been made
+     */
+    public static <T> CompletableFuture<T> submit(TelegramBot handle, String chatId, Priority priority, Supplier<T> request) {
+        TelepadBot bot = TelepadBot.from(handle);
+        if (bot != null)
+            return bot.getOutboundScheduler().submit(chatId, priority, request);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(request.get());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    /**
+     * Makes a request once the rate limits allow it.
+     *
+     * @param chatId The chat the request is for, or null if it is not for a chat
+     * @param priority The priority
+     * @param request The request
+     * @param <T> The request's return type
+     *
+     * @return The result of the request
+     *
+     * @throws CancellationException If interrupted while waiting for a rate
+     *                               limit, in which case nothing is sent
+     */
+    public <T> T call(String chatId, Priority priority, Supplier<T> request) {
+        Objects.requireNonNull(priority, "priority cannot be null");
+        TokenBucket chat = chatId != null ? getChatBucket(chatId) : null;
+        int span = Trace.begin("outbound", priority.name());
+        try {
+            return send(chat, priority, request);
+        } finally {
+            Trace.end(span);
+        }
+    }
+
+    private <T> T send(TokenBucket chat, Priority priority, Supplier<T> request) {
+        if (chat != null)
+            acquire(chat, priority);
+        acquire(global, priority);
+        T result = request.get();
+        sent.increment();
+        return result;
+    }
+
+    /**
+     * Makes a request on one of the scheduler's threads once the rate
+     * limits allow it, without waiting for it.
+     *
+     * Cancelling the future before the request is made stops it being made.
+     *
+     * @param chatId The chat the request is for, or null if it is not for a chat
+     * @param priority The priority
+     * @param request The request
+     * @param <T> The request's return type
+     *
+     * @return The result of the request, once it has been made
+     */
+    public <T> CompletableFuture<T> submit(String chatId, Priority priority, Supplier<T> request) {
+        Objects.requireNonNull(priority, "priority cannot be null");
+        CompletableFuture<T> future = new CompletableFuture<>();
+        queued.incrementAndGet();
+        Runnable task = Trace.wrap(() -> {
+            queued.decrementAndGet();
+            if (future.isDone())
+                return;
+            try {
+                future.complete(call(chatId, priority, request));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        if (chatId == null) {
+            execute(task);
+            return future;
+        }
+        Pending pending = new Pending(priority, submitted.getAndIncrement(), task);
+        Lane[] started = new Lane[1];
+        lanes.compute(chatId, (k, lane) -> {
+            if (lane == null)
+                lane = started[0] = new Lane(k);
+            lane.queue.add(pending);
+            return lane;
+        });
+        if (started[0] != null)
+            execute(started[0]::drain);
+        return future;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // only once shut down, as the queue is unbounded
+            task.run();
+        }
+    }
+
+    /**
+     * Makes a request that has no result once the rate limits allow it.
+     *
+     * @param chatId The chat the request is for, or null if it is not for a chat
+     * @param priority The priority
+     * @param request The request
+     */
+    public void run(String chatId, Priority priority, Runnable request) {
+        call(chatId, priority, () -> {
+            request.run();
+            return null;
+        });
+    }
+
+    /**
+     * Gets the number of requests that were sent successfully.
+     *
+     * @return The number of requests
+     */
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /**
+     * Gets the number of times a request had to wait for a rate limit.
+     *
+     * @return The number of waits
+     */
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * Gets the number of submitted requests that haven't been made yet.
+     *
+     * @return The number of requests
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Stops the scheduler's threads once the submitted requests have been made.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private TokenBucket getChatBucket(String chatId) {
+        TokenBucket bucket = chats.get(chatId);
+        if (bucket != null)
+            return bucket;
+        bucket = chats.computeIfAbsent(chatId, k -> {
+            created.incrementAndGet();
+            return new TokenBucket(chatCapacity, chatPerSecond);
+        });
+        // sweep idle chats only every so many new chats, so it costs O(1) per send
+        if (created.get() % SWEEP_INTERVAL == 0 && chats.size() > MAX_IDLE_CHATS)
+            chats.values().removeIf(TokenBucket::isFull);
+        return bucket;
+    }
+
+    private void acquire(TokenBucket bucket, Priority priority) {
+        long start = System.nanoTime();
+        try {
+            if (bucket.acquire(priority)) {
+                throttled.increment();
+                Trace.record("outbound.throttle", start, System.nanoTime());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for a rate limit");
+        }
+    }
+
+    private static class Pending {
+
+        private static final Comparator<Pending> ORDER = Comparator.<Pending>comparingInt(p -> p.priority.ordinal()).thenComparingLong(p -> p.sequence);
+
+        private final Priority priority;
+        private final long sequence;
+        private final Runnable task;
+
+        private Pending(Priority priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+    }
+
+    /**
+     * The submitted requests waiting in a single chat.
+     *
+     * A lane is only in the map while a thread is draining it, and its queue
+     * is only touched while holding the map's lock for its chat.
+     */
+    private class Lane {
+
+        private final String chatId;
+        private final PriorityQueue<Pending> queue = new PriorityQueue<>(Pending.ORDER);
+
+        private Lane(String chatId) {
+            this.chatId = chatId;
+        }
+
+        private void drain() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Pending[] next = new Pending[1];
+                lanes.computeIfPresent(chatId, (k, lane) -> {
+                    next[0] = lane.queue.poll();
+                    return next[0] != null ? lane : null;
+                });
+                if (next[0] == null)
+                    return;
+                next[0].task.run();
+            }
+            // give other chats a turn before carrying on
+            execute(this::drain);
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+package xyz.nickr.telepad.outbound;
+
+/**
+ * Represents how urgently an outbound request should be sent.
+ *
+ * When the bot is being rate limited, waiting requests are sent in order
+ * of priority, and in the order they were made within a priority.
+ *
+ * @author Nick Robson
+ */
+public enum Priority {
+
+    /**
+     * Requests the user is actively waiting on, such as callback answers.
+     */
+    HIGH,
+
+    /**
+     * Ordinary replies and edits.
+     */
+    NORMAL,
+
+    /**
+     * Large or non-interactive sends.
+     */
+    BULK
+
+}
@@ -0,0 +1,156 @@
+package xyz.nickr.telepad.outbound;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket, which allows short bursts of up to its capacity while
+ * limiting the long-term rate to its refill rate.
+ *
+ * Threads waiting for a token queue up by {@link Priority}. Tokens go to
+ * the longest waiting thread of the highest priority that has any, so an
+ * urgent request never waits behind less urgent ones that were already
+ * queued.
+ *
+ * @author Nick Robson
+ */
+public class TokenBucket {
+
+    private final int capacity;
+    private final long nanosPerToken;
+
+    private final Deque<Thread>[] waiters;
+    private int waiting;
+
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param capacity The maximum number of tokens held
+     * @param perSecond The number of tokens added each second
+     */
+    public TokenBucket(int capacity, double perSecond) {
+        if (capacity < 1 || perSecond <= 0)
+            throw new IllegalArgumentException("capacity and rate must be positive");
+        this.capacity = capacity;
+        this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = lastRefill;
+        @SuppressWarnings("unchecked")
+        Deque<Thread>[] waiters = new Deque[Priority.values().length];
+        for (int i = 0; i < waiters.length; i++)
+            waiters[i] = new ArrayDeque<>();
+        this.waiters = waiters;
+    }
+
+    /**
+     * Gets the maximum number of tokens held.
+     *
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Takes a token, waiting for one if there are none, or if any thread
+     * of the same or a higher priority is already waiting.
+     *
+     * @param priority The priority
+     *
+     * @return Whether this had to wait
+     *
+     * @throws InterruptedException If interrupted while waiting, in which
+     *                              case no token was taken
+     */
+    public synchronized boolean acquire(Priority priority) throws InterruptedException {
+        if (waiting == 0 && tryTake() == 0)
+            return false;
+        Thread thread = Thread.currentThread();
+        Deque<Thread> queue = waiters[priority.ordinal()];
+        queue.addLast(thread);
+        waiting++;
+        try {
+            while (true) {
+                if (isNext(thread, priority)) {
+                    long wait = tryTake();
+                    if (wait == 0)
+                        return true;
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } else {
+                    wait();
+                }
+            }
+        } finally {
+            queue.removeFirstOccurrence(thread);
+            waiting--;
+            // let whoever is next start waiting for the next token
+            notifyAll();
+        }
+    }
+
+    private boolean isNext(Thread thread, Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (!waiters[i].isEmpty())
+                return false;
+        }
+        return waiters[priority.ordinal()].peekFirst() == thread;
+    }
+
+    // returns 0 if a token was taken, otherwise the nanoseconds until one might be
+    private long tryTake() {
+        long now = System.nanoTime();
+        if (now - pausedUntil < 0)
+            return pausedUntil - now;
+        refill(now);
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) * nanosPerToken));
+    }
+
+    /**
+     * Stops handing out tokens for a given duration, and empties the bucket.
+     *
+     * Used when Telegram tells us to back off.
+     *
+     * @param duration The duration
+     * @param unit The unit of the duration
+     */
+    public synchronized void pause(long duration, TimeUnit unit) {
+        long until = System.nanoTime() + unit.toNanos(duration);
+        if (until - pausedUntil > 0)
+            pausedUntil = until;
+        tokens = 0;
+        lastRefill = pausedUntil;
+    }
+
+    /**
+     * Checks whether this bucket is full, meaning it has not been used
+     * recently and nothing is waiting for it.
+     *
+     * @return True iff the bucket is full
+     */
+    public synchronized boolean isFull() {
+        long now = System.nanoTime();
+        if (waiting > 0 || now - pausedUntil < 0)
+            return false;
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + (double) elapsed / nanosPerToken);
+            lastRefill = now;
+        }
+    }
+
+}
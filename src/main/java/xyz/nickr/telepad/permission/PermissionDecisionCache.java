@@ -0,0 +1,270 @@
+package xyz.nickr.telepad.permission;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Caches the outcome of permission checks, keyed by user ID, chat ID and
+ * permission node, so that expensive predicates aren't evaluated again for
+ * every command and every {@code /help}.
+ *
+ * Decisions expire after a time to live, and can be invalidated explicitly
+ * when whatever the predicates depend on changes. A decision evaluated
+ * while anything is invalidated is not cached, as it may be based on what
+ * was there before.
+ *
+ * @author Nick Robson
+ */
+public class PermissionDecisionCache {
+
+    private final Map<Key, Decision> decisions = new ConcurrentHashMap<>();
+    // bumped by every invalidation, so that decisions evaluated across one aren't cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long ttlNanos;
+    private volatile int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param ttl How long decisions are kept, or 0 to disable caching
+     * @param unit The unit of the ttl
+     * @param maxSize The maximum number of decisions kept
+     */
+    public PermissionDecisionCache(long ttl, TimeUnit unit, int maxSize) {
+        setTtl(ttl, unit);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets how long decisions are kept for, and invalidates all of them.
+     *
+     * @param ttl The time to live, or 0 to disable caching
+     * @param unit The unit of the ttl
+     */
+    public void setTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0)
+            throw new IllegalArgumentException("ttl cannot be negative");
+        this.ttlNanos = unit.toNanos(ttl);
+        invalidateAll();
+    }
+
+    /**
+     * Gets how long decisions are kept for.
+     *
+     * @param unit The unit to return the ttl in
+     *
+     * @return The time to live, or 0 if caching is disabled
+     */
+    public long getTtl(TimeUnit unit) {
+        return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum number of decisions kept.
+     *
+     * @param maxSize The maximum number of decisions
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets a cached decision, evaluating and caching it if there is none.
+     *
+     * @param userId The ID of the user
+     * @param chatId The ID of the chat
+     * @param permission The permission node
+     * @param evaluator Evaluates the decision if it is not cached
+     *
+     * @return The decision
+     */
+    public boolean get(long userId, String chatId, String permission, BooleanSupplier evaluator) {
+        long ttl = this.ttlNanos;
+        if (ttl == 0)
+            return evaluator.getAsBoolean();
+        Key key = new Key(userId, chatId, permission);
+        long now = System.nanoTime();
+        Decision decision = decisions.get(key);
+        if (decision != null && now - decision.expiresAt < 0) {
+            hits.increment();
+            return decision.allowed;
+        }
+        misses.increment();
+        long generation = this.generation.get();
+        boolean allowed = evaluator.getAsBoolean();
+        if (this.generation.get() != generation)
+            return allowed;
+        if (decisions.size() >= maxSize)
+            evict(now);
+        Decision evaluated = new Decision(allowed, now + ttl);
+        decisions.put(key, evaluated);
+        // an invalidation may have cleared the map between the check and the put
+        if (this.generation.get() != generation)
+            decisions.remove(key, evaluated);
+        return allowed;
+    }
+
+    /**
+     * Invalidates a single decision.
+     *
+     * @param userId The ID of the user
+     * @param chatId The ID of the chat
+     * @param permission The permission node
+     */
+    public void invalidate(long userId, String chatId, String permission) {
+        generation.incrementAndGet();
+        if (decisions.remove(new Key(userId, chatId, permission)) != null)
+            invalidations.increment();
+    }
+
+    /**
+     * Invalidates every decision about a user.
+     *
+     * @param userId The ID of the user
+     */
+    public void invalidateUser(long userId) {
+        invalidateIf(key -> key.userId == userId);
+    }
+
+    /**
+     * Invalidates every decision made in a chat.
+     *
+     * @param chatId The ID of the chat
+     */
+    public void invalidateChat(String chatId) {
+        invalidateIf(key -> key.chatId.equals(chatId));
+    }
+
+    /**
+     * Invalidates every decision about a permission node.
+     *
+     * @param permission The permission node
+     */
+    public void invalidatePermission(String permission) {
+        invalidateIf(key -> key.permission.equals(permission));
+    }
+
+    /**
+     * Invalidates every decision.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        invalidations.add(decisions.size());
+        decisions.clear();
+    }
+
+    /**
+     * Gets the number of decisions currently cached.
+     *
+     * @return The number of decisions
+     */
+    public int size() {
+        return decisions.size();
+    }
+
+    /**
+     * Gets the number of checks answered from the cache.
+     *
+     * @return The number of checks
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of checks that had to evaluate the predicates.
+     *
+     * @return The number of checks
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of decisions invalidated before they expired.
+     *
+     * @return The number of decisions
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Gets the fraction of checks answered from the cache.
+     *
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = getHitCount(), total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private void invalidateIf(Predicate<Key> predicate) {
+        generation.incrementAndGet();
+        decisions.keySet().removeIf(key -> {
+            if (!predicate.test(key))
+                return false;
+            invalidations.increment();
+            return true;
+        });
+    }
+
+    private void evict(long now) {
+        decisions.values().removeIf(decision -> now - decision.expiresAt >= 0);
+        // everything is still fresh, so start again rather than scanning for the oldest
+        if (decisions.size() >= maxSize)
+            decisions.clear();
+    }
+
+    private static final class Key {
+
+        private final long userId;
+        private final String chatId;
+        private final String permission;
+
+        private Key(long userId, String chatId, String permission) {
+            this.userId = userId;
+            this.chatId = chatId;
+            this.permission = permission;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return userId == key.userId && chatId.equals(key.chatId) && permission.equals(key.permission);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(userId) * 31 + chatId.hashCode()) * 31 + permission.hashCode();
+        }
+
+    }
+
+    private static final class Decision {
+
+        private final boolean allowed;
+        private final long expiresAt;
+
+        private Decision(boolean allowed, long expiresAt) {
+            this.allowed = allowed;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -1,8 +1,9 @@
 package xyz.nickr.telepad.permission;
 
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiPredicate;
 import pro.zackpollard.telegrambot.api.chat.message.Message;
 import xyz.nickr.telepad.TelepadBot;
@@ -11,16 +12,30 @@ import xyz.nickr.telepad.TelepadBot;
  * Manages permission checking for command usage
  * and otherwise.
  *
+ * A {@link PermissionTree} is always checked first, so that
+ * most bots can simply grant nodes rather than write predicates.
+ *
+ * Decisions can be cached per user, chat and permission in a
+ * {@link PermissionDecisionCache}, which is off by default, as
+ * predicates may depend on anything. Once predicates only depend
+ * on those, or invalidate the cache whenever their answer changes,
+ * give it a ttl to turn it on.
+ *
  * @author Nick Robson
  */
 public class PermissionManager {
 
     private final TelepadBot bot;
     private final List<BiPredicate<Message, String>> predicates;
+    private final PermissionDecisionCache decisionCache;
+    private final PermissionTree permissionTree;
 
     public PermissionManager(TelepadBot bot) {
         this.bot = bot;
-        this.predicates = new LinkedList<>();
+        this.predicates = new CopyOnWriteArrayList<>();
+        this.decisionCache = new PermissionDecisionCache(0, TimeUnit.MINUTES, 10000);
+        this.permissionTree = new PermissionTree(decisionCache);
+        this.predicates.add(permissionTree);
     }
 
     /**
@@ -32,6 +47,25 @@ public class PermissionManager {
         return bot;
     }
 
+    /**
+     * Gets the cache of permission decisions.
+     *
+     * @return The cache
+     */
+    public PermissionDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Gets the tree of permission grants, which is checked before any
+     * other predicate.
+     *
+     * @return The tree
+     */
+    public PermissionTree getPermissionTree() {
+        return permissionTree;
+    }
+
     /**
      * Adds a permission predicate for checking if a user has
      * a specific permission.
@@ -41,6 +75,7 @@ public class PermissionManager {
     public void addPredicate(BiPredicate<Message, String> predicate) {
         Objects.requireNonNull(predicate, "predicate");
         predicates.add(predicate);
+        decisionCache.invalidateAll();
     }
 
     /**
@@ -52,6 +87,12 @@ public class PermissionManager {
      * @return True iff the user has the permission
      */
     public boolean hasPermission(Message message, String permission) {
+        if (message.getSender() == null)
+            return evaluate(message, permission);
+        return decisionCache.get(message.getSender().getId(), message.getChat().getId(), permission, () -> evaluate(message, permission));
+    }
+
+    private boolean evaluate(Message message, String permission) {
         for (BiPredicate<Message, String> predicate : predicates) {
             if (predicate.test(message, permission)) {
                 return true;
@@ -0,0 +1,250 @@
+package xyz.nickr.telepad.permission;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import pro.zackpollard.telegrambot.api.chat.message.Message;
+
+/**
+ * Grants permission nodes to everyone, to chats, to users, or to users in
+ * a specific chat.
+ *
+ * Nodes are dotted, like {@code script.reload}, and are kept in a trie of
+ * their segments, so checking a node only walks as deep as the node is.
+ * A node ending in {@code *} grants everything below it, so
+ * {@code script.*} grants {@code script.reload}, and {@code *} grants
+ * everything. A node starting with {@code -} is a negation, denying the
+ * rest of the node.
+ *
+ * The most specific grant wins: an exact node beats a wildcard, and a
+ * deeper wildcard beats a shallower one. Grants for a user in a chat are
+ * checked first, then grants for the user, then for the chat, and then
+ * for everyone, and the first of those with a matching grant decides.
+ *
+ * As a predicate, a denied or ungranted node tests false, so other
+ * predicates in the {@link PermissionManager} may still allow it.
+ *
+ * @author Nick Robson
+ */
+public class PermissionTree implements BiPredicate<Message, String> {
+
+    private final PermissionDecisionCache decisionCache;
+
+    private final Grants global;
+    private final Map<String, Grants> chats = new ConcurrentHashMap<>();
+    private final Map<Long, Grants> users = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, Grants>> usersInChats = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty tree.
+     */
+    public PermissionTree() {
+        this(null);
+    }
+
+    /**
+     * Creates an empty tree that invalidates decisions in a cache whenever
+     * its grants change.
+     *
+     * @param decisionCache The cache, or null
+     */
+    public PermissionTree(PermissionDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+        this.global = new Grants(() -> {
+            if (decisionCache != null)
+                decisionCache.invalidateAll();
+        });
+    }
+
+    /**
+     * Gets the grants that apply to everyone.
+     *
+     * @return The grants
+     */
+    public Grants global() {
+        return global;
+    }
+
+    /**
+     * Gets the grants that apply to everyone in a chat.
+     *
+     * @param chatId The ID of the chat
+     *
+     * @return The grants
+     */
+    public Grants chat(String chatId) {
+        return chats.computeIfAbsent(chatId, id -> new Grants(() -> {
+            if (decisionCache != null)
+                decisionCache.invalidateChat(id);
+        }));
+    }
+
+    /**
+     * Gets the grants that apply to a user in every chat.
+     *
+     * @param userId The ID of the user
+     *
+     * @return The grants
+     */
+    public Grants user(long userId) {
+        return users.computeIfAbsent(userId, id -> new Grants(() -> {
+            if (decisionCache != null)
+                decisionCache.invalidateUser(id);
+        }));
+    }
+
+    /**
+     * Gets the grants that apply to a user in a specific chat.
+     *
+     * @param userId The ID of the user
+     * @param chatId The ID of the chat
+     *
+     * @return The grants
+     */
+    public Grants user(long userId, String chatId) {
+        return usersInChats.computeIfAbsent(userId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(chatId, id -> new Grants(() -> {
+                    if (decisionCache != null)
+                        decisionCache.invalidateUser(userId);
+                }));
+    }
+
+    /**
+     * Checks whether a user has a permission in a chat.
+     *
+     * @param userId The ID of the user
+     * @param chatId The ID of the chat
+     * @param permission The permission node
+     *
+     * @return True iff the most specific matching grant allows it
+     */
+    public boolean check(long userId, String chatId, String permission) {
+        Boolean decision = null;
+        Map<String, Grants> inChats = usersInChats.get(userId);
+        Grants grants;
+        if (inChats != null && (grants = inChats.get(chatId)) != null)
+            decision = grants.lookup(permission);
+        if (decision == null && (grants = users.get(userId)) != null)
+            decision = grants.lookup(permission);
+        if (decision == null && (grants = chats.get(chatId)) != null)
+            decision = grants.lookup(permission);
+        if (decision == null)
+            decision = global.lookup(permission);
+        return decision != null && decision;
+    }
+
+    @Override
+    public boolean test(Message message, String permission) {
+        if (message.getSender() == null)
+            return Boolean.TRUE.equals(global.lookup(permission));
+        return check(message.getSender().getId(), message.getChat().getId(), permission);
+    }
+
+    /**
+     * A set of grants, as a trie of node segments.
+     */
+    public static class Grants {
+
+        private final Node root = new Node();
+        private final Runnable onChange;
+
+        private Grants(Runnable onChange) {
+            this.onChange = onChange;
+        }
+
+        /**
+         * Grants a node, or denies it if it starts with {@code -}.
+         *
+         * @param node The node
+         *
+         * @return This object
+         */
+        public Grants grant(String node) {
+            if (node.startsWith("-"))
+                return set(node.substring(1), Boolean.FALSE);
+            return set(node, Boolean.TRUE);
+        }
+
+        /**
+         * Denies a node.
+         *
+         * @param node The node
+         *
+         * @return This object
+         */
+        public Grants deny(String node) {
+            return set(node, Boolean.FALSE);
+        }
+
+        /**
+         * Removes any grant or denial of a node.
+         *
+         * @param node The node, with or without a leading {@code -}
+         *
+         * @return This object
+         */
+        public Grants unset(String node) {
+            return set(node.startsWith("-") ? node.substring(1) : node, null);
+        }
+
+        /**
+         * Checks this set of grants alone for a node.
+         *
+         * @param permission The permission node
+         *
+         * @return True or false if a grant matches, or null if none does
+         */
+        public Boolean lookup(String permission) {
+            Node node = root;
+            Boolean decision = node.wildcard;
+            int start = 0;
+            while (true) {
+                int end = permission.indexOf('.', start);
+                String segment = end < 0 ? permission.substring(start) : permission.substring(start, end);
+                node = node.children.get(segment);
+                if (node == null)
+                    return decision;
+                if (end < 0)
+                    return node.value != null ? node.value : decision;
+                if (node.wildcard != null)
+                    decision = node.wildcard;
+                start = end + 1;
+            }
+        }
+
+        private Grants set(String path, Boolean value) {
+            if (path.isEmpty())
+                throw new IllegalArgumentException("node cannot be empty");
+            boolean wildcard = path.equals("*") || path.endsWith(".*");
+            if (wildcard)
+                path = path.length() == 1 ? "" : path.substring(0, path.length() - 2);
+            synchronized (root) {
+                Node node = root;
+                if (!path.isEmpty()) {
+                    for (String segment : path.split("\\.", -1)) {
+                        if (segment.isEmpty() || segment.equals("*"))
+                            throw new IllegalArgumentException("invalid node: " + path);
+                        node = node.children.computeIfAbsent(segment, s -> new Node());
+                    }
+                }
+                if (wildcard) {
+                    node.wildcard = value;
+                } else {
+                    node.value = value;
+                }
+            }
+            onChange.run();
+            return this;
+        }
+
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private volatile Boolean value;
+        private volatile Boolean wildcard;
+
+    }
+
+}
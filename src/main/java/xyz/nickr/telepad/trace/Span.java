@@ -0,0 +1,70 @@
+package xyz.nickr.telepad.trace;
+
+/**
+ * A timed stage of a {@link Trace}.
+ *
+ * @author Nick Robson
+ */
+public final class Span {
+
+    private final String name;
+    private final int parent;
+    private final long startNanos;
+    private volatile long endNanos;
+
+    Span(String name, int parent, long startNanos) {
+        this.name = name;
+        this.parent = parent;
+        this.startNanos = startNanos;
+    }
+
+    void end(long endNanos) {
+        this.endNanos = endNanos;
+    }
+
+    /**
+     * Gets the name of the stage.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the index of the span this one is nested in.
+     *
+     * @return The index, or -1 if this is the root span
+     */
+    public int getParent() {
+        return parent;
+    }
+
+    /**
+     * Gets when the stage started, from {@link System#nanoTime()}.
+     *
+     * @return The start time
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Gets when the stage ended, from {@link System#nanoTime()}.
+     *
+     * @return The end time, or 0 if it hasn't ended
+     */
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    /**
+     * Gets whether the stage has ended.
+     *
+     * @return True iff it has ended
+     */
+    public boolean isEnded() {
+        return endNanos != 0;
+    }
+
+}
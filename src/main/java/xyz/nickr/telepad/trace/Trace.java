@@ -0,0 +1,316 @@
+package xyz.nickr.telepad.trace;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The timings of each stage of handling a single update.
+ *
+ * A trace is attached to the thread handling its update, and the static
+ * methods here add spans to whichever trace is attached to the calling
+ * thread. When no trace is attached, which is the case for every update
+ * that wasn't sampled, they return straight away without allocating, so
+ * they are cheap enough to leave in the hot path.
+ *
+ * Work handed to another thread keeps its trace if the task is passed
+ * through {@link #wrap(Runnable)}, or if the trace is attached to the
+ * other thread explicitly.
+ *
+ * @author Nick Robson
+ */
+public final class Trace {
+
+    /**
+     * The most spans kept in a trace. Any more are counted, but dropped.
+     */
+    public static final int MAX_SPANS = 128;
+
+    private static final ThreadLocal<Context> context = ThreadLocal.withInitial(Context::new);
+
+    private final long id;
+    private final long startMillis;
+    private final AtomicReferenceArray<Span> spans = new AtomicReferenceArray<>(MAX_SPANS);
+    private final AtomicInteger spanCount = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    Trace(long id, String name) {
+        this.id = id;
+        this.startMillis = System.currentTimeMillis();
+        add(name, -1, System.nanoTime());
+    }
+
+    /**
+     * Gets the trace attached to the current thread.
+     *
+     * @return The trace, or null if there is none
+     */
+    public static Trace current() {
+        return context.get().trace;
+    }
+
+    /**
+     * Starts a span in the trace attached to the current thread, nested in
+     * the span that is open on this thread.
+     *
+     * @param name The name of the span
+     *
+     * @return The span's index, to end it with, or -1 if there is no trace
+     */
+    public static int begin(String name) {
+        Context ctx = context.get();
+        if (ctx.trace == null)
+            return -1;
+        int span = ctx.trace.add(name, ctx.span, System.nanoTime());
+        if (span >= 0)
+            ctx.span = span;
+        return span;
+    }
+
+    /**
+     * Starts a span, named by a stage and a detail such as a command name.
+     * The name is only built if there is a trace.
+     *
+     * @param name The name of the stage
+     * @param detail The detail
+     *
+     * @return The span's index, to end it with, or -1 if there is no trace
+     */
+    public static int begin(String name, String detail) {
+        return context.get().trace != null ? begin(name + " " + detail) : -1;
+    }
+
+    /**
+     * Ends a span started on this thread.
+     *
+     * @param span The span's index, or -1 to do nothing
+     */
+    public static void end(int span) {
+        if (span < 0)
+            return;
+        Context ctx = context.get();
+        if (ctx.trace == null)
+            return;
+        Span s = ctx.trace.spans.get(span);
+        s.end(System.nanoTime());
+        ctx.span = s.getParent();
+    }
+
+    /**
+     * Adds a span that has already ended to the trace attached to the
+     * current thread, such as the time a task spent waiting in a queue.
+     *
+     * @param name The name of the span
+     * @param startNanos When it started, from {@link System#nanoTime()}
+     * @param endNanos When it ended, from {@link System#nanoTime()}
+     */
+    public static void record(String name, long startNanos, long endNanos) {
+        Context ctx = context.get();
+        if (ctx.trace == null)
+            return;
+        int span = ctx.trace.add(name, ctx.span, startNanos);
+        if (span >= 0)
+            ctx.trace.spans.get(span).end(endNanos);
+    }
+
+    /**
+     * Gets the span open on this thread, so that work handed to another
+     * thread can be nested in it.
+     *
+     * @return The span's index, or -1 if there is no trace
+     */
+    public static int currentSpan() {
+        Context ctx = context.get();
+        return ctx.trace != null ? ctx.span : -1;
+    }
+
+    /**
+     * Attaches a trace to the current thread, with new spans nested in the
+     * given span.
+     *
+     * @param trace The trace, or null to detach any trace
+     * @param span The span's index
+     */
+    public static void attach(Trace trace, int span) {
+        Context ctx = context.get();
+        ctx.trace = trace;
+        ctx.span = span;
+    }
+
+    /**
+     * Detaches any trace from the current thread.
+     */
+    public static void detach() {
+        attach(null, -1);
+    }
+
+    /**
+     * Wraps a task so that it runs with the current thread's trace
+     * attached, wherever it runs.
+     *
+     * @param task The task
+     *
+     * @return The wrapped task, or the task itself if there is no trace
+     */
+    public static Runnable wrap(Runnable task) {
+        Context ctx = context.get();
+        Trace trace = ctx.trace;
+        if (trace == null)
+            return task;
+        int span = ctx.span;
+        return () -> {
+            Context runner = context.get();
+            Trace previousTrace = runner.trace;
+            int previousSpan = runner.span;
+            attach(trace, span);
+            try {
+                task.run();
+            } finally {
+                attach(previousTrace, previousSpan);
+            }
+        };
+    }
+
+    /**
+     * Ends this trace's first span, whichever thread it is attached to.
+     *
+     * @param endNanos When it ended, from {@link System#nanoTime()}
+     */
+    void endRoot(long endNanos) {
+        spans.get(0).end(endNanos);
+    }
+
+    private int add(String name, int parent, long startNanos) {
+        int span = spanCount.getAndIncrement();
+        if (span >= MAX_SPANS) {
+            spanCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return -1;
+        }
+        spans.set(span, new Span(name, parent, startNanos));
+        return span;
+    }
+
+    /**
+     * Gets the ID of this trace, which counts up from 1.
+     *
+     * @return The ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Gets the name of this trace, which is the name of its first span.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return spans.get(0).getName();
+    }
+
+    /**
+     * Gets when this trace started.
+     *
+     * @return The time, in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Gets the spans in this trace, in the order they started.
+     *
+     * @return The spans
+     */
+    public List<Span> getSpans() {
+        List<Span> list = new ArrayList<>();
+        for (int i = 0, j = Math.min(spanCount.get(), MAX_SPANS); i < j; i++) {
+            Span span = spans.get(i);
+            if (span != null)
+                list.add(span);
+        }
+        return list;
+    }
+
+    /**
+     * Gets the number of spans dropped because there were too many.
+     *
+     * @return The number of spans
+     */
+    public int getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the time from the start of this trace to the end of its last
+     * span to end.
+     *
+     * @return The duration, in nanoseconds
+     */
+    public long getDurationNanos() {
+        long start = spans.get(0).getStartNanos();
+        long end = start;
+        for (Span span : getSpans())
+            end = Math.max(end, span.isEnded() ? span.getEndNanos() : span.getStartNanos());
+        return end - start;
+    }
+
+    /**
+     * Gets whether every span in this trace has ended.
+     *
+     * @return True iff they have all ended
+     */
+    public boolean isEnded() {
+        for (Span span : getSpans()) {
+            if (!span.isEnded())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes this trace as text: a line for the trace, and then a line for
+     * each span, indented under its parent, with when it started relative
+     * to the trace and how long it took, in milliseconds.
+     *
+     * @return The text
+     */
+    @Override
+    public String toString() {
+        List<Span> spans = getSpans();
+        long start = spans.get(0).getStartNanos();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("trace #%d %s at %s took %.3fms%s%s\n", id, getName(),
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(startMillis)),
+                millis(getDurationNanos()), isEnded() ? "" : " (in progress)",
+                dropped.get() > 0 ? " (" + dropped.get() + " spans dropped)" : ""));
+        for (Span span : spans) {
+            int depth = 1;
+            for (int parent = span.getParent(); parent >= 0; parent = this.spans.get(parent).getParent())
+                depth++;
+            for (int i = 0; i < depth; i++)
+                sb.append("  ");
+            sb.append(String.format("%s +%.3fms ", span.getName(), millis(span.getStartNanos() - start)));
+            sb.append(span.isEnded() ? String.format("%.3fms", millis(span.getEndNanos() - span.getStartNanos())) : "running");
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static final class Context {
+
+        private Trace trace;
+        private int span = -1;
+
+    }
+
+}
@@ -0,0 +1,154 @@
+package xyz.nickr.telepad.trace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Starts a {@link Trace} for a sample of updates, and keeps the most
+ * recent ones in a ring buffer to be dumped on demand.
+ *
+ * A trace is put in the buffer as soon as it starts, overwriting the
+ * oldest, so updates that are still being handled can be seen too.
+ * Starting a trace doesn't lock.
+ *
+ * @author Nick Robson
+ */
+public class Tracer {
+
+    private final AtomicReferenceArray<Trace> traces;
+    private final AtomicLong ids = new AtomicLong();
+    private volatile double sampleRate;
+
+    /**
+     * Creates a tracer that traces 1% of updates and keeps the last 1024.
+     */
+    public Tracer() {
+        this(1024, 0.01);
+    }
+
+    /**
+     * Creates a tracer.
+     *
+     * @param capacity The number of traces to keep
+     * @param sampleRate The fraction of updates to trace, from 0 to 1
+     */
+    public Tracer(int capacity, double sampleRate) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.traces = new AtomicReferenceArray<>(capacity);
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Sets the fraction of updates to trace.
+     *
+     * @param sampleRate The fraction, from 0 for none to 1 for all
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1)
+            throw new IllegalArgumentException("sample rate must be between 0 and 1");
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Gets the fraction of updates traced.
+     *
+     * @return The fraction
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Starts tracing an update if it is sampled, attaching the trace to
+     * the current thread with its first span open.
+     *
+     * @param name The name of the trace and its first span
+     * @param detail A detail to add to the name, such as a command name
+     *
+     * @return The trace, or null if the update wasn't sampled
+     */
+    public Trace start(String name, String detail) {
+        double sampleRate = this.sampleRate;
+        if (sampleRate <= 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate))
+            return null;
+        long id = ids.incrementAndGet();
+        Trace trace = new Trace(id, detail != null ? name + " " + detail : name);
+        traces.set((int) ((id - 1) % traces.length()), trace);
+        Trace.attach(trace, 0);
+        return trace;
+    }
+
+    /**
+     * Ends a trace's first span, and detaches it from the current thread if
+     * it is attached there. Spans started elsewhere, like commands still
+     * queued to run, carry on being added to it.
+     *
+     * @param trace The trace, or null to do nothing
+     */
+    public void finish(Trace trace) {
+        if (trace == null)
+            return;
+        trace.endRoot(System.nanoTime());
+        if (Trace.current() == trace)
+            Trace.detach();
+    }
+
+    /**
+     * Gets the traces kept.
+     *
+     * @return The traces, newest first
+     */
+    public List<Trace> getTraces() {
+        List<Trace> list = new ArrayList<>();
+        long last = ids.get();
+        for (long id = last; id > 0 && id > last - traces.length(); id--) {
+            Trace trace = traces.get((int) ((id - 1) % traces.length()));
+            if (trace != null && trace.getId() == id)
+                list.add(trace);
+        }
+        return list;
+    }
+
+    /**
+     * Writes every trace kept as text, newest first.
+     *
+     * @return The text
+     */
+    public String dump() {
+        return dump(getTraces());
+    }
+
+    /**
+     * Writes the slowest traces kept as text, slowest first.
+     *
+     * @param limit The most traces to write
+     *
+     * @return The text
+     */
+    public String dumpSlowest(int limit) {
+        List<Trace> list = getTraces();
+        list.sort(Comparator.comparingLong(Trace::getDurationNanos).reversed());
+        return dump(list.subList(0, Math.min(limit, list.size())));
+    }
+
+    /**
+     * Forgets every trace kept.
+     */
+    public void clear() {
+        for (int i = 0; i < traces.length(); i++)
+            traces.set(i, null);
+    }
+
+    private static String dump(List<Trace> traces) {
+        StringBuilder sb = new StringBuilder();
+        for (Trace trace : traces)
+            sb.append(trace).append('\n');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,294 @@
+package xyz.nickr.telepad.util;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of threads for running background work, which keeps
+ * count of what it has done.
+ *
+ * @author Nick Robson
+ */
+public class AsyncExecutor implements Executor {
+
+    /**
+     * Represents what happens to a task when the queue is full.
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * Throws a {@link RejectedExecutionException}.
+         */
+        ABORT,
+
+        /**
+         * Runs the task on the thread that submitted it.
+         */
+        CALLER_RUNS,
+
+        /**
+         * Silently drops the task.
+         */
+        DISCARD,
+
+        /**
+         * Drops the oldest queued task, and queues this one instead.
+         */
+        DISCARD_OLDEST
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final RejectionPolicy rejectionPolicy;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private AsyncExecutor(String name, int threads, int queueCapacity, RejectionPolicy rejectionPolicy, ThreadFactory threadFactory) {
+        this.name = name;
+        this.rejectionPolicy = rejectionPolicy;
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new LinkedBlockingQueue<>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, threadFactory, new Rejector());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Objects.requireNonNull(task, "task cannot be null");
+        submitted.increment();
+        executor.execute(() -> {
+            try {
+                task.run();
+                completed.increment();
+            } catch (Throwable t) {
+                failed.increment();
+                t.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new tasks, letting queued tasks finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Gets whether this executor has been shut down.
+     *
+     * @return True iff it no longer accepts new tasks
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Gets the name of this executor, used for naming its threads.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of tasks that have been submitted.
+     *
+     * @return The number of tasks
+     */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * Gets the number of tasks that ran without throwing.
+     *
+     * @return The number of tasks
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * Gets the number of tasks that threw an exception.
+     *
+     * @return The number of tasks
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Gets the number of tasks that were rejected because the queue was full.
+     *
+     * @return The number of tasks
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of threads currently running a task.
+     *
+     * @return The number of threads
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of tasks waiting to be run.
+     *
+     * @return The number of tasks
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{name=%s, active=%d, queued=%d, submitted=%d, completed=%d, failed=%d, rejected=%d}",
+                getClass().getSimpleName(), name, getActiveCount(), getQueuedCount(),
+                getSubmittedCount(), getCompletedCount(), getFailedCount(), getRejectedCount());
+    }
+
+    /**
+     * Creates a builder for making an executor.
+     *
+     * @return The builder
+     */
+    public static AsyncExecutorBuilder builder() {
+        return new AsyncExecutorBuilder();
+    }
+
+    private class Rejector implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            rejected.increment();
+            if (executor.isShutdown())
+                throw new RejectedExecutionException(name + " has been shut down");
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    task.run();
+                    break;
+                case DISCARD:
+                    break;
+                case DISCARD_OLDEST:
+                    executor.getQueue().poll();
+                    executor.execute(task);
+                    break;
+                default:
+                    throw new RejectedExecutionException(name + " is full");
+            }
+        }
+
+    }
+
+    public static class AsyncExecutorBuilder {
+
+        private String name = "telepad";
+        private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private int queueCapacity = 1000;
+        private RejectionPolicy rejectionPolicy = RejectionPolicy.CALLER_RUNS;
+        private ThreadFactory threadFactory;
+
+        /**
+         * Sets the name of the executor, used for naming its threads.
+         *
+         * @param name The name
+         *
+         * @return This instance
+         */
+        public AsyncExecutorBuilder name(String name) {
+            this.name = Objects.requireNonNull(name, "name cannot be null");
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of threads in the pool.
+         *
+         * @param threads The number of threads
+         *
+         * @return This instance
+         */
+        public AsyncExecutorBuilder threads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be positive");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of tasks that can wait for a thread.
+         *
+         * @param queueCapacity The capacity, or 0 for no limit
+         *
+         * @return This instance
+         */
+        public AsyncExecutorBuilder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets what happens to a task when the queue is full.
+         *
+         * @param rejectionPolicy The policy
+         *
+         * @return This instance
+         */
+        public AsyncExecutorBuilder rejectionPolicy(RejectionPolicy rejectionPolicy) {
+            this.rejectionPolicy = Objects.requireNonNull(rejectionPolicy, "rejection policy cannot be null");
+            return this;
+        }
+
+        /**
+         * Sets the factory used to create the pool's threads.
+         *
+         * By default, daemon threads named after the executor are used.
+         *
+         * @param threadFactory The thread factory
+         *
+         * @return This instance
+         */
+        public AsyncExecutorBuilder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * Builds a new executor from this builder.
+         *
+         * @return The executor
+         */
+        public AsyncExecutor build() {
+            ThreadFactory factory = this.threadFactory;
+            if (factory == null) {
+                String prefix = this.name;
+                AtomicInteger counter = new AtomicInteger();
+                factory = r -> {
+                    Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                };
+            }
+            return new AsyncExecutor(name, threads, queueCapacity, rejectionPolicy, factory);
+        }
+
+    }
+
+}
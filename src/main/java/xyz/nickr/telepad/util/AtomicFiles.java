@@ -0,0 +1,48 @@
+package xyz.nickr.telepad.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces files so that a crash leaves either the old or the new version
+ * behind, never a partially written one.
+ *
+ * @author Nick Robson
+ */
+final class AtomicFiles {
+
+    private AtomicFiles() {}
+
+    /**
+     * Gets the file to write a new version of a file to, before it
+     * replaces the file.
+     *
+     * @param file The file
+     *
+     * @return The temporary file, next to it
+     */
+    static File temporary(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Moves a fully written file over another, atomically if the file
+     * system supports it.
+     *
+     * @param source The file written
+     * @param target The file to replace
+     *
+     * @throws IOException If the file can't be moved
+     */
+    static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
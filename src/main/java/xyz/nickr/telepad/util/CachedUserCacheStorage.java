@@ -0,0 +1,174 @@
+package xyz.nickr.telepad.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps the most recently used users of another storage on the heap.
+ *
+ * Lookups are read through to the underlying storage and cached, and
+ * stores are written through. Storing a user that is already cached
+ * unchanged doesn't touch the underlying storage at all, which keeps the
+ * users active in chats from hitting a disk-backed storage on every event.
+ *
+ * Each cached user is kept in both directions or neither, so a username
+ * can never be looked up for a user after the user's own entry has been
+ * evicted or renamed.
+ *
+ * @author Nick Robson
+ */
+public class CachedUserCacheStorage implements UserCacheStorage {
+
+    private final UserCacheStorage storage;
+    private final int maxSize;
+
+    // usernames are kept without the leading @, and the users are evicted from both maps together
+    private final Map<Long, String> usernames;
+    private final Map<String, Long> userIds = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache in front of a storage, holding at most a given number
+     * of users and evicting the least recently used once full.
+     *
+     * @param storage The underlying storage
+     * @param maxSize The maximum number of users
+     */
+    public CachedUserCacheStorage(UserCacheStorage storage, int maxSize) {
+        this.storage = storage;
+        this.maxSize = maxSize;
+        this.usernames = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                if (size() <= CachedUserCacheStorage.this.maxSize)
+                    return false;
+                userIds.remove(eldest.getValue(), eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets the storage behind this cache.
+     *
+     * @return The storage
+     */
+    public UserCacheStorage getStorage() {
+        return storage;
+    }
+
+    @Override
+    public String getUsername(long id) {
+        String username;
+        synchronized (this) {
+            username = usernames.get(id);
+        }
+        if (username != null) {
+            hits.increment();
+            return "@" + username;
+        }
+        misses.increment();
+        username = storage.getUsername(id);
+        if (username != null) {
+            synchronized (this) {
+                cacheIfAbsent(id, strip(username));
+            }
+        }
+        return username;
+    }
+
+    @Override
+    public long getUserId(String username, long defaultId) {
+        String key = strip(username);
+        Long id;
+        synchronized (this) {
+            id = userIds.get(key);
+            if (id != null)
+                usernames.get(id); // counts as a use of the user
+        }
+        if (id != null) {
+            hits.increment();
+            return id;
+        }
+        misses.increment();
+        long stored = storage.getUserId(key, defaultId);
+        if (stored != defaultId) {
+            synchronized (this) {
+                cacheIfAbsent(stored, key);
+            }
+        }
+        return stored;
+    }
+
+    @Override
+    public boolean store(String username, long userId) {
+        String key = strip(username);
+        synchronized (this) {
+            Long id = userIds.get(key);
+            if (id != null && id == userId && key.equals(usernames.get(userId)))
+                return false;
+        }
+        boolean changed = storage.store(key, userId);
+        synchronized (this) {
+            String previous = usernames.put(userId, key);
+            if (previous != null && !previous.equals(key))
+                userIds.remove(previous, userId);
+            Long owner = userIds.put(key, userId);
+            // whoever had the username before has been renamed since
+            if (owner != null && owner != userId)
+                usernames.remove(owner, key);
+        }
+        return changed;
+    }
+
+    // read from the storage without holding the lock, so a user stored since wins
+    private void cacheIfAbsent(long userId, String username) {
+        if (usernames.containsKey(userId) || userIds.containsKey(username))
+            return;
+        usernames.put(userId, username);
+        userIds.put(username, userId);
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> consumer) {
+        storage.forEach(consumer);
+    }
+
+    @Override
+    public void flush() {
+        storage.flush();
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+    /**
+     * Gets the number of lookups answered from this cache.
+     *
+     * @return The number of lookups
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to read the underlying storage.
+     *
+     * @return The number of lookups
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static String strip(String username) {
+        return username.startsWith("@") ? username.substring(1) : username;
+    }
+
+}
@@ -1,10 +1,8 @@
 package xyz.nickr.telepad.util;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides case-sensitive unique identifiers.
@@ -15,20 +13,9 @@ import java.util.Set;
  */
 public class ConsecutiveId {
 
-    private static final Set<String> reserved = new HashSet<>();
-    private static final List<Character> chars = new ArrayList<>();
-
-    static {
-        for (char i = 'a', j = 'z'; i <= j; i++) {
-            ConsecutiveId.chars.add(i);
-        }
-        for (char i = 'A', j = 'Z'; i <= j; i++) {
-            ConsecutiveId.chars.add(i);
-        }
-        for (char i = '0', j = '9'; i <= j; i++) {
-            ConsecutiveId.chars.add(i);
-        }
-    }
+    private static final Set<String> reserved = ConcurrentHashMap.newKeySet();
+    private static final char[] chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+    private static final int MAX_LENGTH = 11; // 62^11 > Long.MAX_VALUE
 
     /**
      * Reserves a namespace for a new ConsecutiveId instance.
@@ -39,14 +26,12 @@ public class ConsecutiveId {
      *          Otherwise returns null.
      */
     public static ConsecutiveId reserve(String identifier) {
-        return reserved.contains(identifier) ? null : new ConsecutiveId(identifier);
+        return reserved.add(identifier) ? new ConsecutiveId() : null;
     }
 
-    private String curr;
+    private final AtomicLong counter = new AtomicLong();
 
-    private ConsecutiveId(String identifier) {
-        reserved.add(identifier);
-    }
+    private ConsecutiveId() {}
 
     /**
      * Gets the next unique identifier in the sequence.
@@ -75,38 +60,34 @@ public class ConsecutiveId {
      *     </tr>
      * </table>
      *
+     * This is safe to call from multiple threads.
+     *
      * @return The next identifier.
      */
     public String next() {
-        if (curr == null) {
-            return curr = Character.toString(chars.get(0));
-        }
-        char[] currChars = curr.toCharArray();
-        int last = currChars.length - 1;
-        int idx = chars.indexOf(currChars[last]);
-        if (idx != chars.size() - 1) {
-            currChars[last] = chars.get(idx + 1);
-            return curr = new String(currChars);
-        }
-        boolean allSame = true;
-        char lastChar = chars.get(chars.size() - 1);
-        int lastNotLastChar = -1;
-        for (int i = currChars.length; i > 0; i--) {
-            if (currChars[i - 1] != lastChar) {
-                allSame = false;
-                lastNotLastChar = i - 1;
-                break;
-            }
-        }
-        if (allSame) {
-            currChars = new char[currChars.length + 1];
-            Arrays.fill(currChars, chars.get(0));
-            return curr = new String(currChars);
+        return encode(counter.getAndIncrement());
+    }
+
+    /**
+     * Encodes the nth identifier in the sequence.
+     *
+     * The sequence is bijective base-62, so every length is used in full
+     * before moving on to the next length.
+     *
+     * @param n The zero-based position in the sequence
+     *
+     * @return The identifier
+     */
+    static String encode(long n) {
+        char[] buf = new char[MAX_LENGTH];
+        int pos = MAX_LENGTH;
+        long value = n + 1;
+        while (value > 0) {
+            value--;
+            buf[--pos] = chars[(int) (value % chars.length)];
+            value /= chars.length;
         }
-        idx = chars.indexOf(currChars[lastNotLastChar]);
-        currChars[lastNotLastChar] = chars.get(idx + 1);
-        Arrays.fill(currChars, lastNotLastChar + 1, currChars.length, chars.get(0));
-        return curr = new String(currChars);
+        return new String(buf, pos, MAX_LENGTH - pos);
     }
 
 }
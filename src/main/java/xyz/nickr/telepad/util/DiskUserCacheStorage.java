@@ -0,0 +1,445 @@
+package xyz.nickr.telepad.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Stores the user cache in an embedded on-disk key-value store, for caches
+ * too large to keep on the heap.
+ *
+ * Users are appended to a data file as records of a user ID, a u16 length
+ * and the UTF-8 username. A memory-mapped index file next to it holds two
+ * open-addressing hash tables of record offsets, one keyed by user ID and
+ * one by username, so a lookup reads at most a few records from disk.
+ * Neither file is ever loaded onto the heap.
+ *
+ * Records are never rewritten, so a rename leaves the old record behind.
+ * Changes reach the disk whenever the operating system writes them back,
+ * on {@link #flush()}, which happens every few seconds while there are
+ * changes, and on {@link #close()}, which happens on shutdown. Anything
+ * written since the last flush is indexed again when opened, and if the
+ * index is missing or unusable it is rebuilt from the data file.
+ *
+ * The index holds at most about 50 million users, after which new users
+ * are not stored.
+ *
+ * This does no caching of its own, so it should usually be wrapped in a
+ * {@link CachedUserCacheStorage}.
+ *
+ * @author Nick Robson
+ */
+public class DiskUserCacheStorage implements UserCacheStorage {
+
+    private static final int MAGIC = 0x54505544; // TPUD
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int MAX_USERS = MAX_CAPACITY / 4 * 3;
+    private static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private final File indexFile;
+    private final FileChannel data;
+    private long dataSize;
+    private long flushedSize;
+    private boolean full;
+    private volatile boolean closed;
+    private final Thread shutdownHook = new Thread(this::close);
+
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int idsUsed;
+    private int namesUsed;
+    private int count;
+
+    // the last record read, reused so that lookups don't allocate
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + Usernames.MAX_BYTES);
+    private long recordId;
+    private int recordLength;
+    private int foundSlot;
+
+    /**
+     * Opens or creates a store in the given data file, with an index file
+     * next to it with the same name plus {@code .idx}.
+     *
+     * @param dataFile The data file
+     *
+     * @throws IOException If either file can't be opened
+     */
+    public DiskUserCacheStorage(File dataFile) throws IOException {
+        this.indexFile = new File(dataFile.getPath() + ".idx");
+        this.data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.dataSize = data.size();
+
+        long indexed = openIndex();
+        if (indexed < 0) {
+            mapIndex(createIndex(indexFile, MIN_CAPACITY));
+            indexed = 0;
+        }
+        // index anything written after the index was last updated
+        long offset = indexed;
+        while (offset + RECORD_HEADER_SIZE <= dataSize && readRecord(offset)) {
+            long next = offset + RECORD_HEADER_SIZE + recordLength;
+            indexRecord(offset, decode((char) 0), 0, recordId);
+            grow();
+            offset = next;
+        }
+        if (offset < dataSize) {
+            // a partially written record from a crash
+            data.truncate(offset);
+            dataSize = offset;
+        }
+        grow();
+        flush();
+
+        Thread flusher = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                flushIfChanged();
+            }
+        }, "telepad-usercache-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Gets the number of users in this store.
+     *
+     * @return The number of users
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized String getUsername(long id) {
+        return findById(id) >= 0 ? decode('@') : null;
+    }
+
+    @Override
+    public synchronized long getUserId(String username, long defaultId) {
+        return findByName(username, username.startsWith("@") ? 1 : 0) >= 0 ? recordId : defaultId;
+    }
+
+    @Override
+    public synchronized boolean store(String username, long userId) {
+        int start = username.startsWith("@") ? 1 : 0;
+        long offset = findById(userId);
+        if (offset >= 0 && nameEquals(username, start) && findByName(username, start) == offset)
+            return false;
+        if (offset < 0 && count >= MAX_USERS) {
+            if (!full)
+                System.err.println("User cache store is full, no longer storing new users");
+            full = true;
+            return false;
+        }
+        try {
+            long appended = append(username, start, userId);
+            indexRecord(appended, username, start, userId);
+            grow();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void forEach(ObjLongConsumer<String> consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long value = getId(slot);
+            if (value > 0 && readRecord(value - 1))
+                consumer.accept(decode('@'), recordId);
+        }
+    }
+
+    /**
+     * Forces both files to disk, and marks everything written so far as
+     * indexed, so it isn't indexed again when next opened.
+     */
+    @Override
+    public synchronized void flush() {
+        if (closed)
+            return;
+        try {
+            data.force(false);
+            index.force();
+            index.putLong(8, dataSize);
+            index.force();
+            flushedSize = dataSize;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private synchronized void flushIfChanged() {
+        if (dataSize != flushedSize)
+            flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        flush();
+        closed = true;
+        try {
+            data.close();
+            indexChannel.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // already shutting down
+        }
+    }
+
+    /// index
+
+    private long openIndex() throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+            return -1;
+        FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        int capacity = buffer.getInt(4);
+        long indexed = buffer.getLong(8);
+        if (buffer.getInt(0) != MAGIC || Integer.bitCount(capacity) != 1
+                || channel.size() != HEADER_SIZE + capacity * 16L || indexed > dataSize) {
+            channel.close();
+            return -1;
+        }
+        this.indexChannel = channel;
+        this.index = buffer;
+        this.capacity = capacity;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (getId(slot) != EMPTY) {
+                idsUsed++;
+                count++;
+            }
+            if (getName(slot) != EMPTY)
+                namesUsed++;
+        }
+        return indexed;
+    }
+
+    private static File createIndex(File file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + capacity * 16L);
+            raf.writeInt(MAGIC);
+            raf.writeInt(capacity);
+            raf.writeLong(0);
+        }
+        return file;
+    }
+
+    private void mapIndex(File file) throws IOException {
+        this.indexChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+        this.capacity = index.getInt(4);
+        this.idsUsed = 0;
+        this.namesUsed = 0;
+        this.count = 0;
+    }
+
+    private long getId(int slot) {
+        return index.getLong(HEADER_SIZE + slot * 8);
+    }
+
+    private void setId(int slot, long value) {
+        index.putLong(HEADER_SIZE + slot * 8, value);
+    }
+
+    private long getName(int slot) {
+        return index.getLong(HEADER_SIZE + (capacity + slot) * 8);
+    }
+
+    private void setName(int slot, long value) {
+        index.putLong(HEADER_SIZE + (capacity + slot) * 8, value);
+    }
+
+    private long findById(long id) {
+        int mask = capacity - 1;
+        for (int slot = Usernames.hash(id) & mask; ; slot = (slot + 1) & mask) {
+            long value = getId(slot);
+            if (value == EMPTY)
+                return -1;
+            if (value > 0 && readRecord(value - 1) && recordId == id) {
+                foundSlot = slot;
+                return value - 1;
+            }
+        }
+    }
+
+    private long findByName(CharSequence name, int start) {
+        int mask = capacity - 1;
+        for (int slot = Usernames.hash(name, start) & mask; ; slot = (slot + 1) & mask) {
+            long value = getName(slot);
+            if (value == EMPTY)
+                return -1;
+            if (value > 0 && readRecord(value - 1) && nameEquals(name, start)) {
+                foundSlot = slot;
+                return value - 1;
+            }
+        }
+    }
+
+    private void indexRecord(long offset, CharSequence name, int start, long id) {
+        int mask = capacity - 1;
+        long previous = findById(id);
+        if (previous >= 0) {
+            setId(foundSlot, offset + 1);
+            unlinkName(previous);
+        } else {
+            int slot = Usernames.hash(id) & mask;
+            while (getId(slot) != EMPTY)
+                slot = (slot + 1) & mask;
+            setId(slot, offset + 1);
+            idsUsed++;
+            count++;
+        }
+
+        int reuse = -1, slot = Usernames.hash(name, start) & mask;
+        for (long value; (value = getName(slot)) != EMPTY; slot = (slot + 1) & mask) {
+            if (value == TOMBSTONE) {
+                if (reuse < 0)
+                    reuse = slot;
+            } else if (readRecord(value - 1) && nameEquals(name, start)) {
+                // another user used to have this username, so it is now ours
+                setName(slot, offset + 1);
+                return;
+            }
+        }
+        if (reuse >= 0) {
+            setName(reuse, offset + 1);
+        } else {
+            setName(slot, offset + 1);
+            namesUsed++;
+        }
+    }
+
+    private void unlinkName(long offset) {
+        if (!readRecord(offset))
+            return;
+        int mask = capacity - 1;
+        for (int slot = hashRecord() & mask; getName(slot) != EMPTY; slot = (slot + 1) & mask) {
+            if (getName(slot) == offset + 1) {
+                setName(slot, TOMBSTONE);
+                return;
+            }
+        }
+    }
+
+    private void grow() throws IOException {
+        if (idsUsed * 2L <= capacity && namesUsed * 2L <= capacity)
+            return;
+        int newCapacity = capacity;
+        while (newCapacity < MAX_CAPACITY && (count * 2L > newCapacity || newCapacity == capacity))
+            newCapacity <<= 1;
+        // as large as it can get, so only rebuild it to clear out tombstones,
+        // which with at most MAX_USERS users always leaves some slots empty
+        if (newCapacity == capacity && namesUsed - count < capacity / 8)
+            return;
+
+        File tmp = createIndex(AtomicFiles.temporary(indexFile), newCapacity);
+        FileChannel oldChannel = indexChannel;
+        MappedByteBuffer old = index;
+        int oldCapacity = capacity;
+        mapIndex(tmp);
+
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long value = old.getLong(HEADER_SIZE + i * 8);
+            if (value > 0 && readRecord(value - 1)) {
+                int slot = Usernames.hash(recordId) & mask;
+                while (getId(slot) != EMPTY)
+                    slot = (slot + 1) & mask;
+                setId(slot, value);
+                idsUsed++;
+                count++;
+            }
+            value = old.getLong(HEADER_SIZE + (oldCapacity + i) * 8);
+            if (value > 0 && readRecord(value - 1)) {
+                int slot = hashRecord() & mask;
+                while (getName(slot) != EMPTY)
+                    slot = (slot + 1) & mask;
+                setName(slot, value);
+                namesUsed++;
+            }
+        }
+        index.putLong(8, dataSize);
+        index.force();
+        oldChannel.close();
+        AtomicFiles.replace(tmp, indexFile);
+    }
+
+    /// records
+
+    private long append(CharSequence name, int start, long id) throws IOException {
+        byte[] encoded = Usernames.encode(name, start);
+        record.clear();
+        record.putLong(id).putShort((short) encoded.length).put(encoded);
+        record.flip();
+        long offset = dataSize;
+        while (record.hasRemaining())
+            dataSize += data.write(record, dataSize);
+        recordId = id;
+        recordLength = encoded.length;
+        return offset;
+    }
+
+    private boolean readRecord(long offset) {
+        try {
+            record.clear().limit(RECORD_HEADER_SIZE);
+            if (!readFully(offset))
+                return false;
+            recordId = record.getLong(0);
+            recordLength = record.getShort(8) & 0xFFFF;
+            record.limit(RECORD_HEADER_SIZE + recordLength);
+            return readFully(offset);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean readFully(long offset) throws IOException {
+        while (record.hasRemaining()) {
+            if (data.read(record, offset + record.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private String decode(char prefix) {
+        String name = Usernames.decode(record, RECORD_HEADER_SIZE, recordLength);
+        return prefix != 0 ? prefix + name : name;
+    }
+
+    private boolean nameEquals(CharSequence name, int start) {
+        return Usernames.equals(record, RECORD_HEADER_SIZE, recordLength, name, start);
+    }
+
+    private int hashRecord() {
+        return Usernames.hash(record, RECORD_HEADER_SIZE, recordLength);
+    }
+
+}
@@ -0,0 +1,408 @@
+package xyz.nickr.telepad.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Stores the user cache in a file.
+ *
+ * The cache is persisted as a memory-mapped {@link UserCacheSnapshot} plus
+ * an append-only log of changes made since the snapshot. Changes are kept
+ * on the heap and appended to the log in batches every second, and the log
+ * is periodically compacted into a new snapshot.
+ *
+ * Each compaction writes the snapshot to a new file, named after the
+ * snapshot file plus {@code .<generation>}, rather than over the snapshot
+ * that is still mapped, which some platforms don't allow. The newest
+ * generation is opened on start, and older ones are deleted once they
+ * are no longer mapped.
+ *
+ * Changes on the heap are held in a {@link UserIndex}, which stores
+ * usernames as UTF-8 bytes against primitive user IDs. Only the IDs of
+ * users that actually changed are marked dirty for the next flush.
+ *
+ * Only one storage can have a file open at a time in a JVM, until it is
+ * closed, so that two writers never append to the same log.
+ *
+ * @author Nick Robson
+ */
+public class FileUserCacheStorage implements UserCacheStorage {
+
+    private static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long COMPACT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int COMPACT_THRESHOLD = 100000;
+
+    private static final Set<File> openFiles = ConcurrentHashMap.newKeySet();
+
+    // changes made since the snapshot was written, without the leading @
+    private final UserIndex changes = new UserIndex();
+    private volatile UserCacheSnapshot snapshot = UserCacheSnapshot.EMPTY;
+    // the generation of the snapshot, or 0 if it is the snapshot file itself
+    private long generation;
+
+    private final File snapshotFile;
+    private final File logFile;
+    // users changed since the last flush
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+
+    private Writer log;
+    private FileOutputStream logStream;
+    private volatile int logged;
+    private volatile long lastCompaction = System.currentTimeMillis();
+    private volatile boolean closed;
+    private final Thread shutdownHook = new Thread(this::close);
+
+    /**
+     * Creates a storage using {@link UserCache#USER_CACHE_FILENAME} in the
+     * working directory.
+     */
+    public FileUserCacheStorage() {
+        this(new File(UserCache.USER_CACHE_FILENAME));
+    }
+
+    /**
+     * Creates a storage using the given snapshot file, and a log file next
+     * to it with the same name plus {@code .log}.
+     *
+     * If the file was written by an older version as JSON, it is imported
+     * and converted on the next compaction, after which it is deleted.
+     *
+     * @param snapshotFile The snapshot file
+     *
+     * @throws IllegalStateException If another storage has the file open
+     */
+    public FileUserCacheStorage(File snapshotFile) {
+        if (!openFiles.add(snapshotFile.getAbsoluteFile()))
+            throw new IllegalStateException(snapshotFile + " is already open");
+        this.snapshotFile = snapshotFile;
+        this.logFile = new File(snapshotFile.getPath() + ".log");
+
+        this.generation = getLatestGeneration();
+        File current = getSnapshotFile(generation);
+        if (UserCacheSnapshot.isSnapshot(current)) {
+            try {
+                this.snapshot = UserCacheSnapshot.open(current);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } else if (generation == 0 && snapshotFile.exists()) {
+            // written by an older version, so convert it on the next compaction
+            UserCache.readJson(snapshotFile, (username, id) -> store(username, id));
+        }
+        deleteOldSnapshots();
+
+        if (logFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        try {
+            openLog(true);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        Thread writer = new Thread(new WriterThread(), "telepad-usercache-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public String getUsername(long id) {
+        String username = changes.getUsername(id, '@');
+        return username != null ? username : snapshot.getUsername(id);
+    }
+
+    @Override
+    public long getUserId(String username, long defaultId) {
+        long id = changes.getUserId(username, username.startsWith("@") ? 1 : 0);
+        if (id != UserIndex.NOT_FOUND)
+            return id;
+        id = snapshot.getUserId(username);
+        // the user has been renamed since the snapshot, so it's stale
+        if (id == -1 || changes.containsId(id))
+            return defaultId;
+        return id;
+    }
+
+    @Override
+    public boolean store(String username, long userId) {
+        int start = username.startsWith("@") ? 1 : 0;
+        long owner = changes.getUserId(username, start);
+        if (owner == UserIndex.NOT_FOUND && !changes.containsId(userId) && snapshot.contains(userId, username))
+            return false;
+        if (!changes.put(username, start, userId))
+            return false;
+        dirty.add(userId);
+        return true;
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> consumer) {
+        UserCacheSnapshot snapshot = this.snapshot;
+        for (int i = 0, j = snapshot.size(); i < j; i++) {
+            long id = snapshot.getIdAt(i);
+            if (!changes.containsId(id))
+                consumer.accept(snapshot.getUsernameAt(i), id);
+        }
+        changes.forEach('@', consumer);
+    }
+
+    /**
+     * Gets the number of users changed since the last flush to disk.
+     *
+     * @return The number of users
+     */
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Compacts any changes into the snapshot, and stops writing to the file.
+     * Changes stored after this are not persisted.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        compact(false);
+        closed = true;
+        try {
+            if (log != null)
+                log.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        log = null;
+        logStream = null;
+        openFiles.remove(snapshotFile.getAbsoluteFile());
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // already shutting down
+        }
+    }
+
+    private void replay(String line) {
+        int space = line.indexOf(' ');
+        if (space <= 0 || space == line.length() - 1)
+            return; // most likely a partially written line from a crash
+        try {
+            String username = line.substring(space + 1);
+            changes.put(username, username.startsWith("@") ? 1 : 0, Long.parseLong(line.substring(0, space)));
+        } catch (NumberFormatException ignored) {}
+    }
+
+    private void openLog(boolean append) throws IOException {
+        this.logStream = new FileOutputStream(logFile, append);
+        this.log = new BufferedWriter(new OutputStreamWriter(logStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the current username of every dirty user to the log.
+     */
+    @Override
+    public synchronized void flush() {
+        if (log == null || dirty.isEmpty())
+            return;
+        try {
+            for (Iterator<Long> it = dirty.iterator(); it.hasNext(); ) {
+                long userId = it.next();
+                it.remove();
+                String username = changes.getUsername(userId, (char) 0);
+                if (username == null)
+                    continue; // already compacted into the snapshot
+                log.write(Long.toString(userId));
+                log.write(' ');
+                log.write(username);
+                log.write('\n');
+                logged++;
+            }
+            log.flush();
+            logStream.getChannel().force(false);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Merges the changes since the last snapshot into a new snapshot,
+     * replacing the old one atomically, and then empties the log.
+     *
+     * @param reopen Whether to carry on appending to the log afterwards
+     */
+    private synchronized void compact(boolean reopen) {
+        if (closed)
+            return;
+        flush();
+        UserCacheSnapshot old = this.snapshot;
+
+        List<Entry> changed = new ArrayList<>(changes.size());
+        changes.forEach((char) 0, (username, id) -> changed.add(new Entry(username, id)));
+        changed.sort((x, y) -> Long.compare(x.userId, y.userId));
+        long[] changedIds = new long[changed.size()];
+        String[] changedNames = new String[changed.size()];
+        boolean[] stale = new boolean[changed.size()];
+        Set<String> takenNames = new HashSet<>();
+        for (int i = 0; i < changedIds.length; i++) {
+            changedIds[i] = changed.get(i).userId;
+            changedNames[i] = changed.get(i).username;
+            // the username has been taken by another changed user since
+            stale[i] = changes.getUserId(changedNames[i], 0) != changedIds[i];
+            takenNames.add(changedNames[i]);
+        }
+
+        // both are sorted by ID, so merge them, preferring the newer changes
+        int max = old.size() + changedIds.length;
+        long[] ids = new long[max];
+        String[] names = new String[max];
+        int count = 0, a = 0, b = 0;
+        while (a < old.size() || b < changedIds.length) {
+            long oldId = a < old.size() ? old.getIdAt(a) : Long.MAX_VALUE;
+            if (b < changedIds.length && (a >= old.size() || changedIds[b] <= oldId)) {
+                if (a < old.size() && changedIds[b] == oldId)
+                    a++;
+                if (stale[b]) {
+                    b++;
+                    continue;
+                }
+                ids[count] = changedIds[b];
+                names[count++] = changedNames[b++];
+            } else {
+                // drop users whose username has since been taken by someone else
+                String name = old.getUsernameAt(a++).substring(1);
+                if (takenNames.contains(name))
+                    continue;
+                ids[count] = oldId;
+                names[count++] = name;
+            }
+        }
+
+        File next = getSnapshotFile(generation + 1);
+        File tmp = AtomicFiles.temporary(next);
+        try {
+            UserCacheSnapshot.write(tmp, ids, names, count);
+            AtomicFiles.replace(tmp, next);
+            this.snapshot = UserCacheSnapshot.open(next);
+            generation++;
+
+            // drop the changes that made it into the snapshot, keeping any made since
+            for (int i = 0; i < changedIds.length; i++) {
+                changes.remove(changedIds[i], changedNames[i], 0);
+            }
+
+            // everything in the log is now in the snapshot, and anything
+            // stored since is still marked dirty
+            if (log != null)
+                log.close();
+            log = null;
+            if (reopen) {
+                openLog(false);
+            } else {
+                new FileOutputStream(logFile).close();
+            }
+            logged = 0;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        deleteOldSnapshots();
+        lastCompaction = System.currentTimeMillis();
+    }
+
+    private File getSnapshotFile(long generation) {
+        return generation > 0 ? new File(snapshotFile.getPath() + "." + generation) : snapshotFile;
+    }
+
+    private long getLatestGeneration() {
+        long latest = 0;
+        File dir = snapshotFile.getAbsoluteFile().getParentFile();
+        String[] files = dir != null ? dir.list() : null;
+        if (files != null) {
+            for (String file : files)
+                latest = Math.max(latest, parseGeneration(file));
+        }
+        return latest;
+    }
+
+    // returns the generation of a snapshot file name, or 0 if it isn't one
+    private long parseGeneration(String file) {
+        String prefix = snapshotFile.getName() + ".";
+        if (!file.startsWith(prefix) || file.length() == prefix.length() || file.length() - prefix.length() > 18)
+            return 0;
+        for (int i = prefix.length(); i < file.length(); i++) {
+            if (file.charAt(i) < '0' || file.charAt(i) > '9')
+                return 0;
+        }
+        return Long.parseLong(file.substring(prefix.length()));
+    }
+
+    // a file that is still mapped can't be deleted on some platforms, so it is tried again after the next compaction
+    private void deleteOldSnapshots() {
+        if (generation == 0)
+            return;
+        File dir = snapshotFile.getAbsoluteFile().getParentFile();
+        String[] files = dir != null ? dir.list() : null;
+        if (files == null)
+            return;
+        for (String file : files) {
+            long g = parseGeneration(file);
+            if ((g > 0 && g < generation) || file.equals(snapshotFile.getName()))
+                new File(dir, file).delete();
+        }
+    }
+
+    private static class Entry {
+
+        private final String username;
+        private final long userId;
+
+        private Entry(String username, long userId) {
+            this.username = username;
+            this.userId = userId;
+        }
+
+    }
+
+    private class WriterThread implements Runnable {
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (logged >= COMPACT_THRESHOLD || System.currentTimeMillis() - lastCompaction >= COMPACT_INTERVAL_MILLIS) {
+                    compact(true);
+                } else {
+                    flush();
+                }
+            }
+        }
+    }
+}
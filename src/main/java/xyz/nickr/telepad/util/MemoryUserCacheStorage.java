@@ -0,0 +1,44 @@
+package xyz.nickr.telepad.util;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Stores the user cache on the heap only, so it is lost when the bot stops.
+ *
+ * @author Nick Robson
+ */
+public class MemoryUserCacheStorage implements UserCacheStorage {
+
+    private final UserIndex index = new UserIndex();
+
+    @Override
+    public String getUsername(long id) {
+        return index.getUsername(id, '@');
+    }
+
+    @Override
+    public long getUserId(String username, long defaultId) {
+        long id = index.getUserId(username, username.startsWith("@") ? 1 : 0);
+        return id != UserIndex.NOT_FOUND ? id : defaultId;
+    }
+
+    @Override
+    public boolean store(String username, long userId) {
+        return index.put(username, username.startsWith("@") ? 1 : 0, userId);
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> consumer) {
+        index.forEach('@', consumer);
+    }
+
+    /**
+     * Gets the number of stored users.
+     *
+     * @return The number of users
+     */
+    public int size() {
+        return index.size();
+    }
+
+}
@@ -1,11 +1,13 @@
 package xyz.nickr.telepad.util;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.function.IntFunction;
-import java.util.stream.Collectors;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
@@ -15,12 +17,22 @@ import pro.zackpollard.telegrambot.api.chat.message.send.ParseMode;
 import pro.zackpollard.telegrambot.api.chat.message.send.SendableTextMessage;
 import xyz.nickr.telepad.menu.InlineMenu;
 import xyz.nickr.telepad.menu.InlineMenuMessage;
+import xyz.nickr.telepad.outbound.OutboundScheduler;
+import xyz.nickr.telepad.outbound.Priority;
+import xyz.nickr.telepad.trace.Trace;
 
 /**
  * Paginates lines or pages into a user-friendly
  * collection of pages for clicking through using
  * an inline keyboard.
  *
+ * Pages and their menus are only built when they are
+ * about to be shown, so very large data sets are cheap
+ * to paginate. Only the menus near the most recently
+ * viewed page are kept, and a page's menu keeps its ID
+ * when it is rebuilt, so it is still the same menu to
+ * messages showing it.
+ *
  * @author Nick Robson
  */
 @Accessors(chain = true)
@@ -28,15 +40,30 @@ public class PaginatedData {
 
     @Getter @Setter private String header, footer;
 
-    @Getter private final List<String> pages = new ArrayList<>();
+    @Getter private final List<String> pages;
+    private final IntFunction<String> joiner;
     private final Map<Integer, String> cachedPages = new HashMap<>();
+    private int cachedChars;
     @Getter private final int pageCount;
 
     @Getter private IntFunction<String> pageFunction;
 
     @Getter @Setter @NonNull private ParseMode parseMode = ParseMode.NONE;
 
-    private InlineMenu[] menus;
+    /**
+     * The maximum number of characters of generated pages to keep cached.
+     * Pages furthest from the most recently viewed page are evicted first.
+     */
+    @Getter @Setter private int cacheBudget = 1 << 20;
+
+    /**
+     * The number of pages either side of the most recently viewed page
+     * to keep menus built for.
+     */
+    @Getter @Setter private int menuWindow = 2;
+
+    private final Map<Integer, InlineMenu> menus = new HashMap<>();
+    private final Map<Integer, String> menuIds = new HashMap<>();
 
     /**
      * Creates an instance using the given strings as pages.
@@ -44,7 +71,8 @@ public class PaginatedData {
      * @param pages The pages.
      */
     public PaginatedData(List<String> pages) {
-        this.pages.addAll(pages);
+        this.pages = new ArrayList<>(pages);
+        this.joiner = null;
         this.pageCount = pages.size();
     }
 
@@ -52,14 +80,59 @@ public class PaginatedData {
      * Creates an instance using the given strings as lines on
      * pages, and splits them into pages based on the linesPerPage.
      *
+     * Pages are joined when they are first viewed, rather than up front,
+     * including when they are read through {@link #getPages()}.
+     *
      * @param lines The lines
      * @param linesPerPage The maximum number of lines per page
      */
     public PaginatedData(List<String> lines, int linesPerPage) {
-        List<List<String>> partition = Partition.partition(lines, linesPerPage);
+        if (linesPerPage < 1)
+            throw new IllegalArgumentException("linesPerPage must be positive");
+        List<String> copy = new ArrayList<>(lines);
+        this.joiner = page -> String.join("\n", copy.subList(page * linesPerPage, Math.min(copy.size(), (page + 1) * linesPerPage)));
+        this.pageCount = (copy.size() + linesPerPage - 1) / linesPerPage;
+        this.pages = Collections.unmodifiableList(new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getPage(index);
+            }
 
-        this.pages.addAll(partition.stream().map(l -> String.join("\n", l)).collect(Collectors.toList()));
-        this.pageCount = pages.size();
+            @Override
+            public int size() {
+                return pageCount;
+            }
+        });
+    }
+
+    /**
+     * Creates an instance using the given function that turns
+     * a line number into a line, and splits them into pages based
+     * on the linesPerPage. The function must be able to generate
+     * a line for all numbers between 0 (inclusive) and the line
+     * count (exclusive).
+     *
+     * Lines are only requested when the page containing them is viewed.
+     *
+     * @param lineFunction The function
+     * @param lineCount The number of lines
+     * @param linesPerPage The maximum number of lines per page
+     */
+    public PaginatedData(IntFunction<String> lineFunction, int lineCount, int linesPerPage) {
+        if (linesPerPage < 1)
+            throw new IllegalArgumentException("linesPerPage must be positive");
+        this.pages = new ArrayList<>();
+        this.joiner = null;
+        this.pageFunction = page -> {
+            StringBuilder sb = new StringBuilder();
+            for (int i = page * linesPerPage, j = Math.min(lineCount, i + linesPerPage); i < j; i++) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                sb.append(lineFunction.apply(i));
+            }
+            return sb.toString();
+        };
+        this.pageCount = (lineCount + linesPerPage - 1) / linesPerPage;
     }
 
     /**
@@ -73,6 +146,8 @@ public class PaginatedData {
      * @param pageCount The number of pages
      */
     public PaginatedData(IntFunction<String> pageFunction, int pageCount) {
+        this.pages = new ArrayList<>();
+        this.joiner = null;
         this.pageFunction = pageFunction;
         this.pageCount = pageCount;
     }
@@ -85,52 +160,108 @@ public class PaginatedData {
      * @return The page
      */
     public String getPage(int page) {
-        if (pageFunction != null) {
-            return cachedPages.computeIfAbsent(page, pageFunction::apply);
+        IntFunction<String> generator = pageFunction != null ? pageFunction : joiner;
+        if (generator == null)
+            return pages.get(page);
+        if (page < 0 || page >= pageCount)
+            throw new IndexOutOfBoundsException("page " + page + " out of range [0, " + pageCount + ")");
+        synchronized (cachedPages) {
+            String cached = cachedPages.get(page);
+            if (cached != null)
+                return cached;
+        }
+        String generated = generator.apply(page);
+        synchronized (cachedPages) {
+            if (cachedPages.put(page, generated) == null)
+                cachedChars += generated.length();
+            while (cachedChars > cacheBudget && cachedPages.size() > 1) {
+                String evicted = cachedPages.remove(furthestFrom(cachedPages.keySet().iterator(), page));
+                cachedChars -= evicted.length();
+            }
+        }
+        return generated;
+    }
+
+    /**
+     * Gets the {@link InlineMenu} for the nth page, building it if needed.
+     *
+     * Menus more than {@link #getMenuWindow()} pages away are thrown away,
+     * and get the same ID back if they are built again.
+     *
+     * Ready to be sent using an {@link InlineMenuMessage}.
+     *
+     * @param page The page number
+     *
+     * @return The menu
+     */
+    public InlineMenu getInlineMenu(int page) {
+        if (page < 0 || page >= pageCount)
+            throw new IndexOutOfBoundsException("page " + page + " out of range [0, " + pageCount + ")");
+        synchronized (menus) {
+            InlineMenu menu = menus.get(page);
+            if (menu == null) {
+                menus.put(page, menu = buildInlineMenu(page, menuIds.get(page)));
+                menuIds.putIfAbsent(page, menu.getId());
+            }
+            menus.keySet().removeIf(p -> Math.abs(p - page) > menuWindow);
+            return menu;
         }
-        return pages.get(page);
     }
 
     /**
      * Turns the pages into an array of {@link InlineMenu}s.
      *
      * Ready to be sent using an {@link InlineMenuMessage}.
+     * This builds a menu for every page, so {@link #getInlineMenu(int)}
+     * should be preferred for large data sets.
      *
      * @return The array of menus.
      */
     public InlineMenu[] getInlineMenus() {
-        if (this.menus != null)
-            return this.menus;
-
         InlineMenu[] menus = new InlineMenu[this.pageCount];
-        for (int i = 0, j = menus.length; i < j; i++) {
-            final int x = i, y = j;
-            menus[i] = InlineMenu.builder()
-                    .text(() -> (header != null ? header + "\n" : "") + getPage(x) + (footer != null ? "\n" + footer : ""))
-                    .parseMode(parseMode)
-                    .disableWebPreview(true)
-                    .newRow(row -> {
-                        if (x > 0) {
-                            row.newButton(button -> button
-                                    .text("«")
-                                    .callback((m, u) -> {
-                                        m.setMenu(menus[x - 1]);
-                                        return null;
-                                    }));
-                        }
-                        row.newButton(button -> button.text("Page " + (x + 1) + " of " + y));
-                        if (x < (y - 1)) {
-                            row.newButton(button -> button
-                                    .text("»")
-                                    .callback((m, u) -> {
-                                        m.setMenu(menus[x + 1]);
-                                        return null;
-                                    }));
-                        }
-                    })
-                    .build();
+        for (int i = 0; i < menus.length; i++) {
+            menus[i] = getInlineMenu(i);
         }
-        return this.menus = menus;
+        return menus;
+    }
+
+    private InlineMenu buildInlineMenu(int x, String id) {
+        int y = this.pageCount;
+        return InlineMenu.builder()
+                .id(id)
+                .text(() -> (header != null ? header + "\n" : "") + getPage(x) + (footer != null ? "\n" + footer : ""))
+                .parseMode(parseMode)
+                .disableWebPreview(true)
+                .newRow(row -> {
+                    if (x > 0) {
+                        row.newButton(button -> button
+                                .text("«")
+                                .callback((m, u) -> {
+                                    m.setMenu(getInlineMenu(x - 1));
+                                    return null;
+                                }));
+                    }
+                    row.newButton(button -> button.text("Page " + (x + 1) + " of " + y));
+                    if (x < (y - 1)) {
+                        row.newButton(button -> button
+                                .text("»")
+                                .callback((m, u) -> {
+                                    m.setMenu(getInlineMenu(x + 1));
+                                    return null;
+                                }));
+                    }
+                })
+                .build();
+    }
+
+    private static int furthestFrom(Iterator<Integer> pages, int page) {
+        int furthest = pages.next();
+        while (pages.hasNext()) {
+            int p = pages.next();
+            if (Math.abs(p - page) > Math.abs(furthest - page))
+                furthest = p;
+        }
+        return furthest;
     }
 
     /**
@@ -143,9 +274,15 @@ public class PaginatedData {
      * @return The {@link InlineMenuMessage} sent message
      */
     public InlineMenuMessage send(int page, Message message) {
-        InlineMenu menu = getInlineMenus()[page];
-        Message m = message.getChat().sendMessage(SendableTextMessage.markdown("_Loading..._").replyTo(message).build());
-        return menu.getMenuFor(m);
+        int span = Trace.begin("paginate.send");
+        try {
+            InlineMenu menu = getInlineMenu(page);
+            Message m = OutboundScheduler.call(message.getBotInstance(), message.getChat().getId(), Priority.BULK,
+                    () -> message.getChat().sendMessage(SendableTextMessage.markdown("_Loading..._").replyTo(message).build()));
+            return menu.getMenuFor(m);
+        } finally {
+            Trace.end(span);
+        }
     }
 
 }
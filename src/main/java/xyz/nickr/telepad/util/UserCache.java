@@ -1,52 +1,61 @@
 package xyz.nickr.telepad.util;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import lombok.AllArgsConstructor;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
 import pro.zackpollard.telegrambot.api.user.User;
-import xyz.nickr.telepad.TelepadBot;
 
 /**
  * Caches usernames to user IDs.
  *
+ * Where the users are kept is up to the {@link UserCacheStorage}, which is
+ * a {@link FileUserCacheStorage} in the working directory by default.
+ * Storing a user that is already cached only costs a lookup.
+ *
  * @author Nick Robson
  */
 public class UserCache {
 
     public static final String USER_CACHE_FILENAME = "tgusers.cache";
+    public static final String USER_CACHE_LOG_FILENAME = USER_CACHE_FILENAME + ".log";
 
-    private final Map<String, Long> usernamesToIds;
-    private final Map<Long, String> idsToUsernames;
+    private final UserCacheStorage storage;
+    private final LongAdder unchanged = new LongAdder();
 
+    /**
+     * Creates a cache stored in {@link #USER_CACHE_FILENAME} in the working
+     * directory.
+     */
     public UserCache() {
-        this.usernamesToIds = new ConcurrentHashMap<>();
-        this.idsToUsernames = new ConcurrentHashMap<>();
-
-        File file = new File(USER_CACHE_FILENAME);
-
-        if (file.exists()) {
-            try (FileReader reader = new FileReader(file)) {
-                JsonObject object = TelepadBot.GSON.fromJson(reader, JsonObject.class);
-                object.entrySet().forEach(e -> store(e.getKey(), e.getValue().getAsLong()));
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        } else {
-            try {
-                file.createNewFile();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
+        this(new FileUserCacheStorage());
+    }
 
-        new Thread(new PeriodicSaveThread(true)).start();
+    /**
+     * Creates a cache kept in the given storage.
+     *
+     * @param storage The storage
+     */
+    public UserCache(UserCacheStorage storage) {
+        this.storage = Objects.requireNonNull(storage, "storage cannot be null");
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(new PeriodicSaveThread(false)));
+    /**
+     * Gets the storage this cache is kept in.
+     *
+     * @return The storage
+     */
+    public UserCacheStorage getStorage() {
+        return storage;
     }
 
     /**
@@ -57,7 +66,7 @@ public class UserCache {
      * @return The username, or null if not cached.
      */
     public String getUsername(long id) {
-        return idsToUsernames.get(id);
+        return storage.getUsername(id);
     }
 
     /**
@@ -68,9 +77,30 @@ public class UserCache {
      * @return The user ID, or null if not cached.
      */
     public Long getUserId(String username) {
-        if (!username.startsWith("@"))
-            username = "@" + username;
-        return usernamesToIds.get(username);
+        long id = storage.getUserId(username, UserIndex.NOT_FOUND);
+        return id != UserIndex.NOT_FOUND ? id : null;
+    }
+
+    /**
+     * Gets a cached user ID from a username, without boxing it.
+     *
+     * @param username The username
+     * @param defaultId The value to return if the username isn't cached
+     *
+     * @return The user ID, or defaultId if not cached.
+     */
+    public long getUserId(String username, long defaultId) {
+        return storage.getUserId(username, defaultId);
+    }
+
+    /**
+     * Gets the number of stores that found the user already cached, and so
+     * didn't change anything.
+     *
+     * @return The number of stores
+     */
+    public long getUnchangedCount() {
+        return unchanged.sum();
     }
 
     /**
@@ -79,7 +109,8 @@ public class UserCache {
      * @param user The user.
      */
     public void store(User user) {
-        store(user.getUsername(), user.getId());
+        if (user.getUsername() != null)
+            store(user.getUsername(), user.getId());
     }
 
     /**
@@ -89,36 +120,61 @@ public class UserCache {
      * @param userId The user ID
      */
     public void store(String username, long userId) {
-        if (!username.startsWith("@"))
-            username = "@" + username;
-        usernamesToIds.put(username, userId);
-        idsToUsernames.put(userId, username);
+        if (!storage.store(username, userId))
+            unchanged.increment();
     }
 
-    @AllArgsConstructor
-    private class PeriodicSaveThread implements Runnable {
-
-        private final boolean periodic;
+    /**
+     * Stores every user in a JSON object of usernames to user IDs, as
+     * written by {@link #exportJson(File)}.
+     *
+     * @param file The JSON file
+     */
+    public void importJson(File file) {
+        readJson(file, (username, id) -> store(username, id));
+    }
 
-        @Override
-        public void run() {
-            do {
-                Map<String, Long> usernamesToIds = new ConcurrentHashMap<>(UserCache.this.usernamesToIds);
-                try (FileWriter writer = new FileWriter(USER_CACHE_FILENAME)) {
-                    JsonObject object = new JsonObject();
-                    usernamesToIds.forEach(object::addProperty);
-                    TelepadBot.GSON.toJson(object, writer);
+    /**
+     * Writes every cached user to a JSON object of usernames to user IDs.
+     *
+     * @param file The JSON file
+     *
+     * @throws IOException If the file can't be written
+     */
+    public void exportJson(File file) throws IOException {
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            IOException[] error = new IOException[1];
+            storage.forEach((username, id) -> {
+                try {
+                    writer.name(username).value(id);
                 } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-                if (periodic) {
-                    try {
-                        Thread.sleep(10 * 60 * 1000); // 10 minutes
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                    error[0] = ex;
                 }
-            } while (periodic);
+            });
+            if (error[0] != null)
+                throw error[0];
+            writer.endObject();
         }
     }
+
+    /**
+     * Flushes the storage and releases anything it holds open.
+     */
+    public void close() {
+        storage.close();
+    }
+
+    static void readJson(File file, ObjLongConsumer<String> consumer) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                consumer.accept(reader.nextName(), reader.nextLong());
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException ex) {
+            ex.printStackTrace();
+        }
+    }
+
 }
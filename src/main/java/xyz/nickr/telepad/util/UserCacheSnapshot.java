@@ -0,0 +1,267 @@
+package xyz.nickr.telepad.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A read-only, memory-mapped snapshot of the username to user ID mapping.
+ *
+ * Opening a snapshot only maps the file, and lookups are answered directly
+ * from the mapped bytes, so even very large snapshots open in milliseconds
+ * and do not need to fit on the heap.
+ *
+ * The file layout is:
+ * <pre>
+ * int      magic ("TPUC")
+ * int      version
+ * int      count
+ * int      table size (a power of two)
+ * long[]   user IDs, ascending                  (count)
+ * int[]    offsets of usernames in the name area (count)
+ * int[]    username hash table, index + 1       (table size)
+ * byte[]   name area: u16 length + UTF-8 bytes per username
+ * </pre>
+ *
+ * Usernames are stored without their leading {@code @}.
+ *
+ * @author Nick Robson
+ */
+public class UserCacheSnapshot {
+
+    /**
+     * The magic number at the start of every snapshot file.
+     */
+    public static final int MAGIC = 0x54505543; // TPUC
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * A snapshot with no users in it.
+     */
+    public static final UserCacheSnapshot EMPTY = new UserCacheSnapshot(ByteBuffer.allocate(HEADER_SIZE + 4).putInt(MAGIC).putInt(VERSION).putInt(0).putInt(1));
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int tableMask;
+    private final int idsStart;
+    private final int offsetsStart;
+    private final int tableStart;
+    private final int namesStart;
+
+    private UserCacheSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("not a user cache snapshot");
+        this.count = buffer.getInt(8);
+        int tableSize = buffer.getInt(12);
+        this.tableMask = tableSize - 1;
+        this.idsStart = HEADER_SIZE;
+        this.offsetsStart = idsStart + count * 8;
+        this.tableStart = offsetsStart + count * 4;
+        this.namesStart = tableStart + tableSize * 4;
+    }
+
+    /**
+     * Checks whether a file is a snapshot, as opposed to any other format.
+     *
+     * @param file The file
+     *
+     * @return True iff the file starts with the snapshot magic number
+     */
+    public static boolean isSnapshot(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == MAGIC;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a snapshot by mapping it into memory.
+     *
+     * @param file The snapshot file
+     *
+     * @return The snapshot
+     *
+     * @throws IOException If the file can't be read
+     */
+    public static UserCacheSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new UserCacheSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Writes a snapshot to a file.
+     *
+     * @param file The file to write to
+     * @param ids The user IDs, in ascending order with no duplicates
+     * @param usernames The usernames for each ID, with or without a leading {@code @}
+     * @param count The number of users
+     *
+     * @throws IOException If the file can't be written
+     */
+    public static void write(File file, long[] ids, String[] usernames, int count) throws IOException {
+        int tableSize = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+        int[] table = new int[tableSize];
+        int[] offsets = new int[count];
+        byte[][] names = new byte[count][];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && ids[i] <= ids[i - 1])
+                throw new IllegalArgumentException("ids must be ascending and unique");
+            int start = usernames[i].startsWith("@") ? 1 : 0;
+            names[i] = Usernames.encode(usernames[i], start);
+            offsets[i] = offset;
+            offset += 2 + names[i].length;
+            int slot = Usernames.hash(usernames[i], start) & (tableSize - 1);
+            while (table[slot] != 0)
+                slot = (slot + 1) & (tableSize - 1);
+            table[slot] = i + 1;
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(tableSize);
+            for (int i = 0; i < count; i++)
+                out.writeLong(ids[i]);
+            for (int i = 0; i < count; i++)
+                out.writeInt(offsets[i]);
+            for (int slot : table)
+                out.writeInt(slot);
+            for (byte[] name : names) {
+                out.writeShort(name.length);
+                out.write(name);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    /**
+     * Gets the number of users in this snapshot.
+     *
+     * @return The number of users
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets a username from a user ID.
+     *
+     * @param id The user ID
+     *
+     * @return The username, with a leading {@code @}, or null if not present
+     */
+    public String getUsername(long id) {
+        int index = indexOf(id);
+        return index < 0 ? null : "@" + readName(index);
+    }
+
+    /**
+     * Gets a user ID from a username.
+     *
+     * @param username The username, with or without a leading {@code @}
+     *
+     * @return The user ID, or -1 if not present
+     */
+    public long getUserId(String username) {
+        int start = username.startsWith("@") ? 1 : 0;
+        int slot = Usernames.hash(username, start) & tableMask;
+        int index;
+        while ((index = buffer.getInt(tableStart + slot * 4)) != 0) {
+            if (nameEquals(index - 1, username, start))
+                return buffer.getLong(idsStart + (index - 1) * 8);
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a user ID and username map to each other in this snapshot.
+     *
+     * @param id The user ID
+     * @param username The username, with or without a leading {@code @}
+     *
+     * @return True iff the ID has that username, and the username has that ID
+     */
+    public boolean contains(long id, String username) {
+        int index = indexOf(id);
+        return index >= 0 && nameEquals(index, username, username.startsWith("@") ? 1 : 0) && getUserId(username) == id;
+    }
+
+    /**
+     * Calls a consumer for every user in this snapshot, in ascending order of
+     * user ID.
+     *
+     * @param consumer The consumer, given the username (with a leading {@code @}) and user ID
+     */
+    public void forEach(ObjLongConsumer<String> consumer) {
+        for (int i = 0; i < count; i++) {
+            consumer.accept("@" + readName(i), buffer.getLong(idsStart + i * 8));
+        }
+    }
+
+    /**
+     * Gets the user ID at a position in this snapshot.
+     *
+     * @param index The position, between 0 and {@link #size()}
+     *
+     * @return The user ID
+     */
+    public long getIdAt(int index) {
+        return buffer.getLong(idsStart + index * 8);
+    }
+
+    /**
+     * Gets the username at a position in this snapshot.
+     *
+     * @param index The position, between 0 and {@link #size()}
+     *
+     * @return The username, with a leading {@code @}
+     */
+    public String getUsernameAt(int index) {
+        return "@" + readName(index);
+    }
+
+    private int indexOf(long id) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long value = buffer.getLong(idsStart + mid * 8);
+            if (value < id)
+                lo = mid + 1;
+            else if (value > id)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private String readName(int index) {
+        int position = namesStart + buffer.getInt(offsetsStart + index * 4);
+        return Usernames.decode(buffer, position + 2, buffer.getShort(position) & 0xFFFF);
+    }
+
+    private boolean nameEquals(int index, String username, int start) {
+        int position = namesStart + buffer.getInt(offsetsStart + index * 4);
+        return Usernames.equals(buffer, position + 2, buffer.getShort(position) & 0xFFFF, username, start);
+    }
+
+}
@@ -0,0 +1,63 @@
+package xyz.nickr.telepad.util;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Stores the usernames and user IDs behind a {@link UserCache}.
+ *
+ * Usernames may be given with or without a leading {@code @}, and are
+ * always returned with one. Implementations must be safe to use from
+ * multiple threads.
+ *
+ * @author Nick Robson
+ */
+public interface UserCacheStorage {
+
+    /**
+     * Gets a username from a user ID.
+     *
+     * @param id The user ID
+     *
+     * @return The username, or null if not stored
+     */
+    String getUsername(long id);
+
+    /**
+     * Gets a user ID from a username.
+     *
+     * @param username The username
+     * @param defaultId The value to return if the username isn't stored
+     *
+     * @return The user ID, or defaultId if not stored
+     */
+    long getUserId(String username, long defaultId);
+
+    /**
+     * Stores a username and user ID, replacing any previous username for the
+     * ID and any previous ID for the username.
+     *
+     * @param username The username
+     * @param userId The user ID
+     *
+     * @return False if the user was already stored exactly like this
+     */
+    boolean store(String username, long userId);
+
+    /**
+     * Calls a consumer for every stored user.
+     *
+     * @param consumer The consumer, given the username and user ID
+     */
+    void forEach(ObjLongConsumer<String> consumer);
+
+    /**
+     * Writes any buffered changes to wherever this storage persists them.
+     */
+    default void flush() {}
+
+    /**
+     * Flushes this storage and releases anything it holds open.
+     */
+    default void close() {}
+
+}
@@ -0,0 +1,398 @@
+package xyz.nickr.telepad.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A compact, bidirectional index of usernames and user IDs.
+ *
+ * Instead of boxed keys and a map node per entry, users are kept in
+ * parallel primitive arrays, with usernames stored once as UTF-8 bytes in
+ * a shared arena and both directions indexed by open-addressing tables.
+ * Looking up a user ID, or storing a user that has not changed, does not
+ * allocate.
+ *
+ * @author Nick Robson
+ */
+public class UserIndex {
+
+    /**
+     * Returned by {@link #getUserId(CharSequence, int)} when there is no such user.
+     */
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final int FREE = -1;
+
+    private final StampedLock lock = new StampedLock();
+
+    // entries, indexed from 0; a free entry has an offset of FREE
+    private long[] ids = new long[16];
+    private int[] offsets = new int[16];
+    // set when another user has since taken the entry's username
+    private boolean[] unlinked = new boolean[16];
+    private int entryCount;
+    private int[] freeEntries = new int[16];
+    private int freeCount;
+
+    // hash tables, holding entry index + 1
+    private int[] byId = new int[32];
+    private int[] byName = new int[32];
+    private int idTombstones;
+    private int nameTombstones;
+
+    // usernames, as a u16 length then UTF-8 bytes
+    private ByteBuffer arena = ByteBuffer.allocate(1024);
+    private int arenaSize;
+    private int arenaGarbage;
+
+    /**
+     * Gets the number of users in the index.
+     *
+     * @return The number of users
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return entryCount - freeCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets a user ID from a username.
+     *
+     * @param name The characters containing the username
+     * @param start The index the username starts at, such as 1 to skip an {@code @}
+     *
+     * @return The user ID, or {@link #NOT_FOUND}
+     */
+    public long getUserId(CharSequence name, int start) {
+        long stamp = lock.readLock();
+        try {
+            int entry = findByName(name, start);
+            return entry < 0 ? NOT_FOUND : ids[entry];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets a username from a user ID.
+     *
+     * @param id The user ID
+     * @param prefix A character to put before the username, or 0 for none
+     *
+     * @return The username, or null if there is no such user
+     */
+    public String getUsername(long id, char prefix) {
+        long stamp = lock.readLock();
+        try {
+            int entry = findById(id);
+            return entry < 0 ? null : readName(offsets[entry], prefix);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks whether a user ID is stored, with any username.
+     *
+     * @param id The user ID
+     *
+     * @return True iff the user is stored
+     */
+    public boolean containsId(long id) {
+        long stamp = lock.readLock();
+        try {
+            return findById(id) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks whether a user ID is stored with exactly the given username.
+     *
+     * @param id The user ID
+     * @param name The characters containing the username
+     * @param start The index the username starts at
+     *
+     * @return True iff the user is stored with that username
+     */
+    public boolean contains(long id, CharSequence name, int start) {
+        long stamp = lock.readLock();
+        try {
+            int entry = findById(id);
+            return entry >= 0 && nameEquals(offsets[entry], name, start);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Stores a user, replacing any username previously stored for the ID.
+     *
+     * @param name The characters containing the username
+     * @param start The index the username starts at
+     * @param id The user ID
+     *
+     * @return False if the user was already stored with that username, and
+     *         the username still mapped to them
+     */
+    public boolean put(CharSequence name, int start, long id) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = findById(id);
+            if (entry >= 0) {
+                if (nameEquals(offsets[entry], name, start)) {
+                    if (!unlinked[entry])
+                        return false;
+                    // the username came back from another user, so reclaim it
+                } else {
+                    unlinkName(entry);
+                    arenaGarbage += 2 + nameLength(offsets[entry]);
+                    offsets[entry] = appendName(name, start);
+                }
+            } else {
+                entry = allocateEntry();
+                ids[entry] = id;
+                offsets[entry] = appendName(name, start);
+                insertId(entry);
+            }
+            linkName(entry, name, start);
+            maintain();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a user, but only if it is still stored with the given username.
+     *
+     * @param id The user ID
+     * @param name The characters containing the username
+     * @param start The index the username starts at
+     *
+     * @return True iff the user was removed
+     */
+    public boolean remove(long id, CharSequence name, int start) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = findById(id);
+            if (entry < 0 || !nameEquals(offsets[entry], name, start))
+                return false;
+            unlinkName(entry);
+            byId[idSlotOf(entry)] = TOMBSTONE;
+            idTombstones++;
+            arenaGarbage += 2 + nameLength(offsets[entry]);
+            offsets[entry] = FREE;
+            if (freeCount == freeEntries.length)
+                freeEntries = Arrays.copyOf(freeEntries, freeCount * 2);
+            freeEntries[freeCount++] = entry;
+            maintain();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Calls a consumer for every user in the index.
+     *
+     * The index is locked against changes while this runs.
+     *
+     * @param prefix A character to put before each username, or 0 for none
+     * @param consumer The consumer, given the username and user ID
+     */
+    public void forEach(char prefix, ObjLongConsumer<String> consumer) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < entryCount; i++) {
+                if (offsets[i] != FREE)
+                    consumer.accept(readName(offsets[i], prefix), ids[i]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /// lookups
+
+    private int findById(long id) {
+        int mask = byId.length - 1;
+        for (int slot = Usernames.hash(id) & mask; ; slot = (slot + 1) & mask) {
+            int value = byId[slot];
+            if (value == EMPTY)
+                return -1;
+            if (value != TOMBSTONE && ids[value - 1] == id)
+                return value - 1;
+        }
+    }
+
+    private int findByName(CharSequence name, int start) {
+        int mask = byName.length - 1;
+        for (int slot = Usernames.hash(name, start) & mask; ; slot = (slot + 1) & mask) {
+            int value = byName[slot];
+            if (value == EMPTY)
+                return -1;
+            if (value != TOMBSTONE && nameEquals(offsets[value - 1], name, start))
+                return value - 1;
+        }
+    }
+
+    private int idSlotOf(int entry) {
+        int mask = byId.length - 1;
+        int slot = Usernames.hash(ids[entry]) & mask;
+        while (byId[slot] != entry + 1)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /// updates
+
+    private int allocateEntry() {
+        if (freeCount > 0)
+            return freeEntries[--freeCount];
+        if (entryCount == ids.length) {
+            ids = Arrays.copyOf(ids, entryCount * 2);
+            offsets = Arrays.copyOf(offsets, entryCount * 2);
+            unlinked = Arrays.copyOf(unlinked, entryCount * 2);
+        }
+        return entryCount++;
+    }
+
+    private void insertId(int entry) {
+        int mask = byId.length - 1;
+        int slot = Usernames.hash(ids[entry]) & mask;
+        while (byId[slot] > 0)
+            slot = (slot + 1) & mask;
+        if (byId[slot] == TOMBSTONE)
+            idTombstones--;
+        byId[slot] = entry + 1;
+    }
+
+    private void linkName(int entry, CharSequence name, int start) {
+        unlinked[entry] = false;
+        int mask = byName.length - 1;
+        int slot = Usernames.hash(name, start) & mask, reuse = -1;
+        for (; byName[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int value = byName[slot];
+            if (value == TOMBSTONE) {
+                if (reuse < 0)
+                    reuse = slot;
+            } else if (nameEquals(offsets[value - 1], name, start)) {
+                // another user used to have this username, so it is now ours
+                unlinked[value - 1] = true;
+                byName[slot] = entry + 1;
+                return;
+            }
+        }
+        if (reuse >= 0) {
+            byName[reuse] = entry + 1;
+            nameTombstones--;
+        } else {
+            byName[slot] = entry + 1;
+        }
+    }
+
+    private void unlinkName(int entry) {
+        if (unlinked[entry])
+            return;
+        int mask = byName.length - 1;
+        int offset = offsets[entry];
+        for (int slot = hashStored(offset) & mask; byName[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (byName[slot] == entry + 1) {
+                byName[slot] = TOMBSTONE;
+                nameTombstones++;
+                return;
+            }
+        }
+    }
+
+    private void maintain() {
+        int live = entryCount - freeCount;
+        if ((live + idTombstones) * 2 > byId.length || (live + nameTombstones) * 2 > byName.length) {
+            int capacity = Integer.highestOneBit(Math.max(16, live * 4 - 1)) << 1;
+            rehash(capacity);
+        }
+        if (arenaGarbage > 65536 && arenaGarbage * 2 > arenaSize)
+            compactArena();
+    }
+
+    private void rehash(int capacity) {
+        byId = new int[capacity];
+        byName = new int[capacity];
+        idTombstones = 0;
+        nameTombstones = 0;
+        int mask = capacity - 1;
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (offsets[entry] == FREE)
+                continue;
+            insertId(entry);
+            if (unlinked[entry])
+                continue;
+            int slot = hashStored(offsets[entry]) & mask;
+            while (byName[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            byName[slot] = entry + 1;
+        }
+    }
+
+    private void compactArena() {
+        byte[] compacted = new byte[Math.max(1024, Integer.highestOneBit(Math.max(1, arenaSize - arenaGarbage)) << 1)];
+        int size = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            int offset = offsets[entry];
+            if (offset == FREE)
+                continue;
+            int length = 2 + nameLength(offset);
+            System.arraycopy(arena.array(), offset, compacted, size, length);
+            offsets[entry] = size;
+            size += length;
+        }
+        arena = ByteBuffer.wrap(compacted);
+        arenaSize = size;
+        arenaGarbage = 0;
+    }
+
+    /// username storage
+
+    private int appendName(CharSequence name, int start) {
+        byte[] encoded = Usernames.encode(name, start);
+        ensureArena(2 + encoded.length);
+        int offset = arenaSize;
+        arena.putShort(offset, (short) encoded.length);
+        System.arraycopy(encoded, 0, arena.array(), offset + 2, encoded.length);
+        arenaSize += 2 + encoded.length;
+        return offset;
+    }
+
+    private void ensureArena(int extra) {
+        if (arenaSize + extra > arena.capacity())
+            arena = ByteBuffer.wrap(Arrays.copyOf(arena.array(), Math.max(arena.capacity() * 2, arenaSize + extra)));
+    }
+
+    private int nameLength(int offset) {
+        return arena.getShort(offset) & 0xFFFF;
+    }
+
+    private String readName(int offset, char prefix) {
+        String name = Usernames.decode(arena, offset + 2, nameLength(offset));
+        return prefix != 0 ? prefix + name : name;
+    }
+
+    private boolean nameEquals(int offset, CharSequence name, int start) {
+        return Usernames.equals(arena, offset + 2, nameLength(offset), name, start);
+    }
+
+    private int hashStored(int offset) {
+        return Usernames.hash(arena, offset + 2, nameLength(offset));
+    }
+
+}
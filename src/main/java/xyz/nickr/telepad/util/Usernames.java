@@ -0,0 +1,152 @@
+package xyz.nickr.telepad.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes, encodes and compares usernames stored as UTF-8 bytes, shared by
+ * {@link UserIndex}, {@link UserCacheSnapshot} and {@link DiskUserCacheStorage}.
+ *
+ * Usernames are almost always ASCII, so stored names are hashed and
+ * compared a byte at a time, and only decoded if they aren't. A name
+ * hashes the same whether it is stored or not.
+ *
+ * @author Nick Robson
+ */
+final class Usernames {
+
+    /**
+     * The most bytes a username can take, as its length is stored in a u16.
+     */
+    static final int MAX_BYTES = 0xFFFF;
+
+    private Usernames() {}
+
+    /**
+     * Hashes a user ID.
+     *
+     * @param id The user ID
+     *
+     * @return The hash
+     */
+    static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Hashes a username.
+     *
+     * @param name The characters containing the username
+     * @param start The index the username starts at
+     *
+     * @return The hash
+     */
+    static int hash(CharSequence name, int start) {
+        int h = 0x811C9DC5;
+        for (int i = start, j = name.length(); i < j; i++) {
+            h ^= name.charAt(i);
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hashes a stored username.
+     *
+     * @param buffer The buffer holding the username
+     * @param position The position of its first byte
+     * @param length The number of bytes
+     *
+     * @return The hash
+     */
+    static int hash(ByteBuffer buffer, int position, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(position + i);
+            if (b < 0)
+                return hash(decode(buffer, position, length), 0);
+            h ^= b;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Encodes a username as UTF-8.
+     *
+     * @param name The characters containing the username
+     * @param start The index the username starts at
+     *
+     * @return The bytes
+     *
+     * @throws IllegalArgumentException If the username is longer than {@link #MAX_BYTES}
+     */
+    static byte[] encode(CharSequence name, int start) {
+        byte[] bytes = null;
+        for (int i = start; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                bytes = name.subSequence(start, name.length()).toString().getBytes(StandardCharsets.UTF_8);
+                break;
+            }
+        }
+        if (bytes == null) {
+            bytes = new byte[name.length() - start];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) name.charAt(start + i);
+        }
+        if (bytes.length > MAX_BYTES)
+            throw new IllegalArgumentException("username is too long");
+        return bytes;
+    }
+
+    /**
+     * Decodes a stored username.
+     *
+     * @param buffer The buffer holding the username
+     * @param position The position of its first byte
+     * @param length The number of bytes
+     *
+     * @return The username
+     */
+    static String decode(ByteBuffer buffer, int position, int length) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether a stored username is the same as another.
+     *
+     * @param buffer The buffer holding the stored username
+     * @param position The position of its first byte
+     * @param length The number of bytes
+     * @param name The characters containing the other username
+     * @param start The index the other username starts at
+     *
+     * @return True iff they are the same
+     */
+    static boolean equals(ByteBuffer buffer, int position, int length, CharSequence name, int start) {
+        if (length == name.length() - start) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(position + i);
+                if (b < 0)
+                    return decode(buffer, position, length).contentEquals(name.subSequence(start, name.length()));
+                if (b != name.charAt(start + i))
+                    return false;
+            }
+            return true;
+        }
+        // a different length can still match if either side isn't ASCII
+        for (int i = start; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80)
+                return decode(buffer, position, length).contentEquals(name.subSequence(start, name.length()));
+        }
+        return false;
+    }
+
+}